@@ -0,0 +1,131 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.LibraryActionMessage;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the values of {@link Storage#actions} in a compact layout instead of through java serialization, which writes
+ * the class descriptions and boxed fields of every action again. Each action is:
+ * <ul>
+ *     <li>a byte with the version of the layout, currently {@link #VERSION}</li>
+ *     <li>the action id as a var int</li>
+ *     <li>the client id as a zigzag encoded var int, since it's -1 for actions from outside the server</li>
+ *     <li>a byte with the {@link LibraryActionMessage.Type#ordinal()} of the action type</li>
+ *     <li>the file name as a string</li>
+ *     <li>the amount of metadata pairs plus one as a var int, 0 if there is no metadata, followed by the key and
+ *     value of each pair as nullable strings</li>
+ * </ul>
+ * Strings are their length as a var int followed by their characters as written by
+ * {@link WriteBuffer#putStringData(String, int)}. Nullable strings have their length plus one instead, 0 for null.
+ * <br />Only {@link LibraryActionMessage.Action} gets stored, pending actions are kept in memory.
+ */
+public class ActionDataType extends BasicDataType<LibraryActionMessage.Action> {
+    public static final ActionDataType INSTANCE = new ActionDataType();
+    /**
+     * Changing the layout needs a new version, so that actions stored with the previous one can still be read
+     */
+    public static final byte VERSION = 1;
+    private static final LibraryActionMessage.Type[] TYPES = LibraryActionMessage.Type.values();
+
+    private ActionDataType() {}
+
+    @Override
+    public int getMemory(LibraryActionMessage.Action action) {
+        int memory = 48 + action.fileName.length() * 2;
+        if(action.newMetadata != null) {
+            for(LibraryActionMessage.Pair<String, String> pair : action.newMetadata) {
+                memory += 64 + length(pair.key) * 2 + length(pair.value) * 2;
+            }
+        }
+        return memory;
+    }
+
+    @Override
+    public void write(WriteBuffer buffer, LibraryActionMessage.Action action) {
+        buffer.put(VERSION);
+        buffer.putVarInt(action.actionId);
+        buffer.putVarInt((action.clientId << 1) ^ (action.clientId >> 31));
+        buffer.put((byte) action.actionType.ordinal());
+        buffer.putVarInt(action.fileName.length()).putStringData(action.fileName, action.fileName.length());
+        if(action.newMetadata == null) {
+            buffer.putVarInt(0);
+            return;
+        }
+        buffer.putVarInt(action.newMetadata.size() + 1);
+        for(LibraryActionMessage.Pair<String, String> pair : action.newMetadata) {
+            putNullableString(buffer, pair.key);
+            putNullableString(buffer, pair.value);
+        }
+    }
+
+    @Override
+    public LibraryActionMessage.Action read(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if(version != VERSION) {
+            throw new IllegalStateException("Unknown library action layout version " + version);
+        }
+        int actionId = DataUtils.readVarInt(buffer);
+        int zigzagClientId = DataUtils.readVarInt(buffer);
+        int clientId = (zigzagClientId >>> 1) ^ -(zigzagClientId & 1);
+        LibraryActionMessage.Type type = TYPES[buffer.get()];
+        String fileName = DataUtils.readString(buffer);
+        List<LibraryActionMessage.Pair<String, String>> metadata = null;
+        int metadataSize = DataUtils.readVarInt(buffer) - 1;
+        if(metadataSize >= 0) {
+            metadata = new ArrayList<>(metadataSize);
+            for(int i = 0; i < metadataSize; i++) {
+                metadata.add(new LibraryActionMessage.Pair<>(readNullableString(buffer), readNullableString(buffer)));
+            }
+        }
+        return new LibraryActionMessage.Action(actionId, clientId, fileName, type, metadata);
+    }
+
+    @Override
+    public LibraryActionMessage.Action[] createStorage(int size) {
+        return new LibraryActionMessage.Action[size];
+    }
+
+    private static void putNullableString(WriteBuffer buffer, String string) {
+        if(string == null) {
+            buffer.putVarInt(0);
+            return;
+        }
+        buffer.putVarInt(string.length() + 1).putStringData(string, string.length());
+    }
+
+    private static String readNullableString(ByteBuffer buffer) {
+        int length = DataUtils.readVarInt(buffer) - 1;
+        if(length < 0) return null;
+        return DataUtils.readString(buffer, length);
+    }
+
+    private static int length(String string) {
+        return string == null ? 0 : string.length();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.LibraryActionMessage;
+import org.h2.mvstore.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps {@link Storage#actions} from growing forever. Actions older than the compaction horizon are folded into
+ * {@link Storage#snapshot}, which only says which files were in the library at the horizon and which action last
+ * changed each of them, and are then deleted. Clients that ask for actions from before the horizon get the snapshot
+ * instead, followed by the actions after it (see {@link dev.blackilykat.messages.LibrarySnapshotMessage}), so catching
+ * up costs at most as much as the library is big no matter how old the library is.
+ * <br />The most recent {@link Config#COMPACTION_RETAIN_ACTIONS} actions are always kept, so clients that are only a
+ * bit behind still get just the actions they're missing.
+ */
+public class ActionLogCompactor {
+    /**
+     * Compacts the log now and then every {@link Config#COMPACTION_INTERVAL_SECONDS} seconds, unless that is 0 or
+     * less. Runs on its own thread, since compacting a long log takes a while and {@link Main#scheduler} has tasks
+     * that shouldn't wait for it.
+     */
+    public static void start() {
+        if(Config.COMPACTION_INTERVAL_SECONDS <= 0) return;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ActionLogCompactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(ActionLogCompactor::compact, 0, Config.COMPACTION_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compacts everything except the most recent {@link Config#COMPACTION_RETAIN_ACTIONS} actions
+     */
+    public static void compact() {
+        compact(Storage.getCurrentActionID() - Config.COMPACTION_RETAIN_ACTIONS);
+    }
+
+    /**
+     * Moves the compaction horizon to the given action id, folding every action before it into the snapshot. Does
+     * nothing if the horizon is already there or past it.
+     * @param horizon The id of the first action to keep. Capped to the current action id.
+     */
+    public static synchronized void compact(int horizon) {
+        int previous = Storage.getCompactionHorizon();
+        horizon = Math.min(horizon, Storage.getCurrentActionID());
+        if(horizon <= previous) return;
+        long startTime = System.nanoTime();
+
+        // only the last action of each file matters, null if it was removed
+        Map<String, Integer> latest = new HashMap<>();
+        Cursor<Integer, LibraryActionMessage.Action> cursor = Storage.actions.cursor(previous);
+        int folded = 0;
+        while(cursor.hasNext() && cursor.next() < horizon) {
+            LibraryActionMessage.Action action = cursor.getValue();
+            latest.put(action.fileName, action.actionType == LibraryActionMessage.Type.REMOVE ? null : action.actionId);
+            folded++;
+        }
+
+        // replays read each page while holding the same lock, so they either see the old horizon with all the actions
+        // or the new one with the snapshot
+        Storage.actionLock.lock();
+        try {
+            for(Map.Entry<String, Integer> entry : latest.entrySet()) {
+                if(entry.getValue() == null) {
+                    Storage.snapshot.remove(entry.getKey());
+                } else {
+                    Storage.snapshot.put(entry.getKey(), entry.getValue());
+                }
+            }
+            Storage.setCompactionHorizon(horizon);
+        } finally {
+            Storage.actionLock.unlock();
+        }
+
+        // running replays that still had some of these to send see the new horizon and go on with the snapshot
+        for(int actionId = previous; actionId < horizon; actionId++) {
+            Storage.actions.remove(actionId);
+        }
+        System.out.printf("Compacted %d actions before #%d into a snapshot of %d files in %.1fms\n", folded, horizon,
+                Storage.snapshot.size(), (System.nanoTime() - startTime) / 1_000_000.0);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps the content of library files in {@link Storage#BLOBS}, one file per distinct content named after its sha256
+ * hash, and {@link Storage#blobs} maps each file name to the hash of its blob. Knowing which contents the server
+ * already has lets clients skip uploads entirely: an ADD or REPLACE that says the hash of its file gets completed right
+ * away if that blob exists (see {@link dev.blackilykat.messages.LibraryActionAckMessage}).
+ * <br />By default library files are copies of their blob, so the store takes up as much disk space as every distinct
+ * content in the library again, on top of the library itself. With {@link Config#BLOB_STORE_HARD_LINKS} library files
+ * are hard links to their blob instead, so tracks with the same bytes only take up space once, but anything that edits
+ * a library file in place then also edits the blob and every other track with the same content. That's only safe if
+ * nothing but the server writes to the library. Hard links need the blobs folder on the same file system as the
+ * library, where they can't be made files get copied like without the option.
+ */
+public class BlobStore {
+    /**
+     * The names of the files using each blob, so that finding out whether a blob is still used doesn't need to go
+     * through every file. Built from {@link Storage#blobs} the first time it's needed.
+     */
+    private static Map<String, Set<String>> users = null;
+
+    /**
+     * Puts a file that was just written to the library in the store. If there is no blob with the same content yet,
+     * the file gets linked (or copied) to a new one. With {@link Config#BLOB_STORE_HARD_LINKS}, if the blob already
+     * exists the file gets replaced with a link to it.
+     * @param hash The sha256 hash of the file, as calculated by {@link LibraryIndex#hash(File, boolean)}
+     * @return Whether the file got replaced, which changes its last modified time to the one of the blob
+     */
+    public static synchronized boolean adopt(File file, String hash) throws IOException {
+        File blob = blob(hash);
+        String previous = Storage.blobs.get(file.getName());
+        if(previous != null && !previous.equals(hash) && isSameFile(blob(previous), file)) {
+            movedInPlace(previous, hash);
+        }
+        boolean replaced = false;
+        if(!blob.exists()) {
+            link(file, blob);
+        } else if(Config.BLOB_STORE_HARD_LINKS && !isSameFile(blob, file)) {
+            link(blob, file);
+            replaced = true;
+        }
+        setBlob(file.getName(), hash);
+        if(previous != null && !previous.equals(hash)) {
+            release(previous);
+        }
+        return replaced;
+    }
+
+    /**
+     * Puts the content of an existing blob in the library under the given file
+     * @return Whether the blob exists and the file was created, false if the content has to be uploaded
+     */
+    public static synchronized boolean restore(String hash, File file) throws IOException {
+        File blob = blob(hash);
+        if(!blob.isFile()) return false;
+        // blobs are trusted to hold what their name says: only the server writes to them, and library files edited in
+        // place through a hard link get their blob moved to the new hash (see adopt)
+        link(blob, file);
+        return true;
+    }
+
+    /**
+     * Forgets which blob a file was using, deleting the blob if no other file uses it. Should be called every time a
+     * file is removed from the library.
+     */
+    public static synchronized void remove(String fileName) {
+        String hash = setBlob(fileName, null);
+        if(hash != null) {
+            release(hash);
+        }
+    }
+
+    /**
+     * Deletes the blobs no file uses, which can be left behind if the server stops while a file is being added
+     */
+    public static synchronized void sweep() {
+        File[] blobs = Storage.BLOBS.listFiles();
+        if(blobs == null) return;
+        Set<String> used = users().keySet();
+        int deleted = 0;
+        for(File blob : blobs) {
+            if(!used.contains(blob.getName()) && blob.delete()) {
+                deleted++;
+            }
+        }
+        if(deleted > 0) {
+            System.out.printf("Deleted %d unused blobs\n", deleted);
+        }
+    }
+
+    /**
+     * @return The sha256 hash of the blob the file is using, or null if it isn't in the store
+     */
+    public static String hashOf(String fileName) {
+        return Storage.blobs.get(fileName);
+    }
+
+    /**
+     * @return The names of the files using the blob with the given hash
+     */
+    public static synchronized Set<String> filesWith(String hash) {
+        Set<String> files = users().get(hash);
+        if(files == null) return Set.of();
+        return new HashSet<>(files);
+    }
+
+    /**
+     * @return Whether the file is in the store
+     */
+    public static boolean contains(String fileName) {
+        return Storage.blobs.containsKey(fileName);
+    }
+
+    /**
+     * @return Whether the string could be the name of a blob
+     */
+    public static boolean isValidHash(String hash) {
+        if(hash.length() != 64) return false;
+        for(int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called when a file linked to a blob got modified in place, which modified the blob and every other file linked
+     * to it as well. They all hold the new content now, so they all get moved to its hash. Their index entries get
+     * updated once their new last modified time gets noticed.
+     */
+    private static void movedInPlace(String previous, String hash) throws IOException {
+        File oldBlob = blob(previous);
+        File blob = blob(hash);
+        if(blob.exists()) {
+            // the files linked to the old blob keep their own copy of the content
+            oldBlob.delete();
+        } else {
+            Files.move(oldBlob.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        for(String fileName : filesWith(previous)) {
+            setBlob(fileName, hash);
+        }
+    }
+
+    private static File blob(String hash) {
+        return new File(Storage.BLOBS, hash);
+    }
+
+    /**
+     * Deletes a blob if no file uses it anymore
+     */
+    private static void release(String hash) {
+        if(!users().containsKey(hash)) {
+            blob(hash).delete();
+        }
+    }
+
+    /**
+     * Changes the blob a file uses, keeping {@link #users} in sync with {@link Storage#blobs}
+     * @param hash Null to make the file not use any blob
+     * @return The hash of the blob the file was using before, null if there was none
+     */
+    private static String setBlob(String fileName, String hash) {
+        String previous = hash == null ? Storage.blobs.remove(fileName) : Storage.blobs.put(fileName, hash);
+        if(previous != null) {
+            Set<String> files = users().get(previous);
+            if(files != null) {
+                files.remove(fileName);
+                if(files.isEmpty()) users().remove(previous);
+            }
+        }
+        if(hash != null) {
+            users().computeIfAbsent(hash, ignored -> new HashSet<>()).add(fileName);
+        }
+        return previous;
+    }
+
+    private static Map<String, Set<String>> users() {
+        if(users == null) {
+            users = new HashMap<>();
+            for(Map.Entry<String, String> entry : Storage.blobs.entrySet()) {
+                users.computeIfAbsent(entry.getValue(), ignored -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Makes the target a copy of the source (or a hard link to it with {@link Config#BLOB_STORE_HARD_LINKS}),
+     * replacing the target atomically if it exists
+     */
+    private static void link(File source, File target) throws IOException {
+        File temporary = new File(Storage.UPLOADS, UUID.randomUUID() + ".link");
+        try {
+            boolean linked = false;
+            if(Config.BLOB_STORE_HARD_LINKS) {
+                try {
+                    Files.createLink(temporary.toPath(), source.toPath());
+                    linked = true;
+                } catch(IOException | UnsupportedOperationException ignored) {}
+            }
+            if(!linked) {
+                Files.copy(source.toPath(), temporary.toPath());
+            }
+            try {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private static boolean isSameFile(File a, File b) {
+        try {
+            return Files.isSameFile(a.toPath(), b.toPath());
+        } catch(IOException e) {
+            return false;
+        }
+    }
+}
@@ -20,44 +20,99 @@
 
 package dev.blackilykat;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import dev.blackilykat.messages.*;
 import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageFormatException;
 import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
 import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class Client {
     public final Socket socket;
     public InputStream inputStream;
     public OutputStream outputStream;
     public boolean connected = true;
-    public BlockingQueue<Message> messageQueue = new LinkedBlockingQueue<>();
-    public StringBuffer inputBuffer = new StringBuffer();
-    public MessageSendingThread messageSendingThread = new MessageSendingThread();
-    public InputReadingThread inputReadingThread = new InputReadingThread();
-    private int messageIdCounter = 0;
+    public BlockingQueue<Message> messageQueue = new LinkedBlockingQueue<>(Config.CLIENT_QUEUE_CAPACITY);
+    /**
+     * Set once the queue overflowed with {@link SlowConsumerPolicy#RESYNC}, from then on messages are dropped until
+     * {@link #resyncMessage} is sent and the client gets disconnected
+     */
+    private final AtomicBoolean resyncing = new AtomicBoolean(false);
+    private volatile Message resyncMessage = null;
+    public FrameDecoder frameDecoder = new FrameDecoder(this, Config.MAX_FRAME_SIZE);
+    public Thread messageSendingThread;
+    public Thread inputReadingThread;
+    // not synchronized so virtual threads never get pinned to their carrier
+    private final AtomicInteger messageIdCounter = new AtomicInteger(0);
     public final int clientId;
+    /**
+     * When the connection was accepted, as in {@link System#nanoTime()}
+     */
+    public long acceptTime = System.nanoTime();
+    /**
+     * Set once the client sent a {@link TransportOptionsMessage}, which it can only do once
+     */
+    public volatile boolean transportNegotiated = false;
+    /**
+     * The algorithm the client picked for its library hashes with a {@link TransportOptionsMessage}, or null if it
+     * didn't pick one
+     */
+    public volatile HashAlgorithm hashAlgorithm = null;
+    /**
+     * @see Main#finishHandshake(Client)
+     */
+    public final AtomicBoolean handshakeFinished = new AtomicBoolean(false);
+    /**
+     * Compresses what gets written to the socket once the client picked deflate compression, null before that. Only
+     * used by whatever is writing to the socket, which also ends it once the client is disconnected.
+     */
+    protected Deflater deflater = null;
+    /**
+     * Set once the client picked the binary format, from then on messages get written with
+     * {@link Message#toBinary(int)}. Only used by whatever is writing to the socket.
+     */
+    private boolean binaryOutput = false;
 
     public Client(Socket socket, int clientId) throws IOException {
+        this(socket, clientId, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Used by clients that don't read and write through streams (like {@link NioClient}), which can pass null streams
+     */
+    protected Client(Socket socket, int clientId, InputStream inputStream, OutputStream outputStream) {
         this.clientId = clientId;
         this.socket = socket;
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
-        Main.clients.add(this);
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
     }
 
     public void start() {
-        messageSendingThread.start();
-        inputReadingThread.start();
+        Thread.Builder builder = Config.VIRTUAL_CLIENT_THREADS ? Thread.ofVirtual() : Thread.ofPlatform();
+        messageSendingThread = builder.name("Client" + clientId + "-sending").start(new MessageSendingThread());
+        inputReadingThread = builder.name("Client" + clientId + "-reading").start(new InputReadingThread());
     }
 
     public void disconnect() {
@@ -68,10 +123,65 @@ public class Client {
         try {
             socket.close();
         } catch (IOException ignored) {}
+        if(messageSendingThread != null) {
+            messageSendingThread.interrupt();
+        }
     }
 
+    /**
+     * Queues a message to be sent. If the queue is full, what happens depends on {@link Config#SLOW_CONSUMER_POLICY}.
+     */
     public void send(Message message) {
-        messageQueue.add(message);
+        if(resyncing.get()) return;
+        if(messageQueue.offer(message)) return;
+        SlowConsumerPolicy policy = Config.SLOW_CONSUMER_POLICY;
+        if(policy == SlowConsumerPolicy.BLOCK && !canBlock()) {
+            policy = SlowConsumerPolicy.RESYNC;
+        }
+        switch(policy) {
+            case BLOCK -> {
+                try {
+                    while(connected) {
+                        if(messageQueue.offer(message, 1, TimeUnit.SECONDS)) return;
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case RESYNC -> {
+                if(!resyncing.compareAndSet(false, true)) return;
+                System.out.println("Client " + this + " is not reading messages fast enough, making it resync");
+                ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.ErrorType.OVERLOADED, ErrorMessage.Action.RECONNECT);
+                errorMessage.info = "Too many messages are waiting to be sent, reconnect to resync";
+                errorMessage.secondsToRetry = 0;
+                resyncMessage = errorMessage;
+                messageQueue.clear();
+                messageQueue.offer(errorMessage);
+            }
+            case DISCONNECT -> {
+                System.out.println("Client " + this + " is not reading messages fast enough, disconnecting it");
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return Whether the current thread can wait for space in the queue without risking a deadlock. The thread
+     * writing the queue to the socket obviously can't.
+     */
+    protected boolean canBlock() {
+        return Thread.currentThread() != messageSendingThread;
+    }
+
+    /**
+     * Must be called after each message is written to the socket, and actually sent: for {@link #resyncMessage} it
+     * disconnects the client, so anything still buffered would be lost
+     */
+    protected void afterSent(Message message) {
+        message.onSent(this);
+        if(message == resyncMessage) {
+            disconnect();
+        }
     }
 
     public void sendError(ErrorMessage.ErrorType type, int messageId, String info) {
@@ -102,109 +212,289 @@ public class Client {
     /**
      * Increases {@link #messageIdCounter}. It's a method because two threads could try to do this at the same time.
      */
-    public synchronized void increaseMessageIdCounter() {
-        messageIdCounter++;
+    public void increaseMessageIdCounter() {
+        messageIdCounter.incrementAndGet();
     }
 
     public int getMessageIdCounter() {
-        return messageIdCounter;
+        return messageIdCounter.get();
+    }
+
+    /**
+     * Turns a message into the bytes that should be written to the socket, assigning it the next message id.
+     * Must only be called by whatever is writing to the socket, in the order the messages get written. Once
+     * {@link #deflater} gets set, the bytes of every following message must be written through it.
+     */
+    public byte[] encode(Message message) {
+        if(message instanceof ErrorMessage err) {
+            System.err.printf("""
+                    Sending error to client %d:
+                      - type            : %s
+                      - action          : %s
+                      - relative to     : %d
+                      - seconds to retry: %d
+                      - info            : %s
+                    """,
+                    clientId,
+                    err.errorType,
+                    err.action,
+                    err.relativeToMessage,
+                    err.secondsToRetry,
+                    err.info);
+        }
+        if(message instanceof WelcomeMessage) {
+            Metrics.acceptToWelcome.record(System.nanoTime() - acceptTime);
+        }
+        byte[] bytes = binaryOutput ? message.toBinary(getMessageIdCounter()) : message.toBytes(getMessageIdCounter());
+        increaseMessageIdCounter();
+        if(message instanceof TransportOptionsMessage options) {
+            // everything encoded after this must be in the new format
+            if(options.compression != null && deflater == null) {
+                deflater = new Deflater(Config.COMPRESSION_LEVEL);
+            }
+            if(TransportOptionsMessage.BINARY.equals(options.format)) {
+                binaryOutput = true;
+            }
+        }
+        return bytes;
     }
 
-    private class MessageSendingThread extends Thread {
+    /**
+     * Parses a single line received from the socket and handles the message in it, replying with an error if it's
+     * not a valid message. The message is read field by field straight into the message object, which only works
+     * if message_type is the first field (it always is in messages sent by the server). If it isn't, the frame gets
+     * parsed again with the fields reordered.
+     */
+    public void handleFrame(String message) {
+        Message parsedMessage;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(message));
+            // as lenient as Gson.fromJson was
+            reader.setStrictness(Strictness.LENIENT);
+            reader.beginObject();
+            if(!reader.hasNext() || !reader.nextName().equals("message_type")) {
+                reader = reorderFields(message);
+                reader.beginObject();
+                reader.nextName();
+            }
+            String messageType = reader.nextString();
+
+            parsedMessage = switch(messageType.toUpperCase()) {
+                case WelcomeMessage.MESSAGE_TYPE -> WelcomeMessage.fromJson(reader);
+                case DisconnectMessage.MESSAGE_TYPE -> DisconnectMessage.fromJson(reader);
+                case ErrorMessage.MESSAGE_TYPE -> ErrorMessage.fromJson(reader);
+                case LibraryActionMessage.MESSAGE_TYPE -> LibraryActionMessage.fromJson(reader);
+                case TestMessage.MESSAGE_TYPE -> TestMessage.fromJson(reader);
+                case LibraryActionRequestMessage.MESSAGE_TYPE -> LibraryActionRequestMessage.fromJson(reader);
+                case LibraryActionsMessage.MESSAGE_TYPE -> LibraryActionsMessage.fromJson(reader);
+                case TransportOptionsMessage.MESSAGE_TYPE -> TransportOptionsMessage.fromJson(reader);
+                case LibraryDigestRequestMessage.MESSAGE_TYPE -> LibraryDigestRequestMessage.fromJson(reader);
+                case LibraryDigestMessage.MESSAGE_TYPE -> LibraryDigestMessage.fromJson(reader);
+                case LibraryActionAckMessage.MESSAGE_TYPE -> LibraryActionAckMessage.fromJson(reader);
+                case LibrarySnapshotMessage.MESSAGE_TYPE -> LibrarySnapshotMessage.fromJson(reader);
+                default -> {
+                    throw new MessageInvalidContentsException("Unknown message_type '"+messageType+"'");
+                }
+            };
+            reader.endObject();
+            if(reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new MalformedJsonException("Unexpected data after the message");
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException | JsonParseException e) {
+            // malformed json, or a field of the wrong type
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_FORMAT, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageInvalidContentsException e) {
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageMissingContentsException e) {
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_MISSING_CONTENTS, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageException ignored) {
+            //unreachable
+            return;
+        }
+        if(!(parsedMessage instanceof TransportOptionsMessage)) {
+            // sending anything else first means the client isn't going to pick transport options
+            Main.finishHandshake(this);
+        }
+        // outside of the try, so that whatever goes wrong while handling isn't reported as a malformed message
+        parsedMessage.handle(this);
+
+        System.out.println("Received message w/ type " + parsedMessage.getMessageType());
+
+        increaseMessageIdCounter();
+    }
+
+    /**
+     * @return A reader for the frame with message_type moved to be the first field
+     */
+    private static JsonReader reorderFields(String message) throws MessageMissingContentsException {
+        JsonObject json = Json.fromJsonObject(message);
+        if(json == null || !json.has("message_type")) {
+            throw new MessageMissingContentsException("Missing message_type field!");
+        }
+        JsonObject reordered = new JsonObject();
+        reordered.add("message_type", json.get("message_type"));
+        for(Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            reordered.add(entry.getKey(), entry.getValue());
+        }
+        return new JsonReader(new StringReader(reordered.toString()));
+    }
+
+    /**
+     * Same as {@link #handleFrame(String)} for a frame in the binary format, without the length prefix
+     */
+    public void handleBinaryFrame(byte[] frame, int offset, int length) {
+        Message parsedMessage;
+        try {
+            BinaryReader reader = new BinaryReader(frame, offset, length);
+            int typeId = reader.readVarInt();
+            int messageId = reader.readVarInt();
+            parsedMessage = switch(typeId) {
+                case WelcomeMessage.TYPE_ID -> WelcomeMessage.fromBinary(reader);
+                case DisconnectMessage.TYPE_ID -> DisconnectMessage.fromBinary(reader);
+                case ErrorMessage.TYPE_ID -> ErrorMessage.fromBinary(reader);
+                case LibraryActionMessage.TYPE_ID -> LibraryActionMessage.fromBinary(reader);
+                case TestMessage.TYPE_ID -> TestMessage.fromBinary(reader);
+                case LibraryActionRequestMessage.TYPE_ID -> LibraryActionRequestMessage.fromBinary(reader);
+                case LibraryActionsMessage.TYPE_ID -> LibraryActionsMessage.fromBinary(reader);
+                case LibraryHashesMessage.TYPE_ID -> LibraryHashesMessage.fromBinary(reader);
+                case TransportOptionsMessage.TYPE_ID -> TransportOptionsMessage.fromBinary(reader);
+                case LibraryDigestRequestMessage.TYPE_ID -> LibraryDigestRequestMessage.fromBinary(reader);
+                case LibraryDigestMessage.TYPE_ID -> LibraryDigestMessage.fromBinary(reader);
+                case LibraryActionAckMessage.TYPE_ID -> LibraryActionAckMessage.fromBinary(reader);
+                case LibrarySnapshotMessage.TYPE_ID -> LibrarySnapshotMessage.fromBinary(reader);
+                default -> {
+                    throw new MessageInvalidContentsException("Unknown message type id " + typeId);
+                }
+            };
+            parsedMessage.messageId = messageId;
+        } catch (MessageFormatException e) {
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_FORMAT, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageInvalidContentsException e) {
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageMissingContentsException e) {
+            increaseMessageIdCounter();
+            sendError(ErrorMessage.ErrorType.MESSAGE_MISSING_CONTENTS, getMessageIdCounter()-1, e.getMessage());
+            return;
+        } catch (MessageException ignored) {
+            //unreachable
+            return;
+        }
+        parsedMessage.handle(this);
+
+        System.out.println("Received message w/ type " + parsedMessage.getMessageType());
+
+        increaseMessageIdCounter();
+    }
+
+    /**
+     * Replies with an error to a frame that was bigger than {@link Config#MAX_FRAME_SIZE}, which is not handled
+     */
+    public void rejectOversizeFrame() {
+        increaseMessageIdCounter();
+        sendError(ErrorMessage.ErrorType.MESSAGE_FORMAT, getMessageIdCounter()-1,
+                "Message is bigger than " + Config.MAX_FRAME_SIZE + " bytes");
+    }
+
+    private class MessageSendingThread implements Runnable {
+        private OutputStream bufferedOutputStream;
+        private boolean compressing = false;
+
+        private void write(Message message) throws IOException {
+            bufferedOutputStream.write(encode(message));
+            if(message == resyncMessage) {
+                // afterSent disconnects the client, which must not happen while the error is still in the buffer
+                bufferedOutputStream.flush();
+            }
+            afterSent(message);
+            if(deflater != null && !compressing) {
+                // the message turned compression on, everything after it goes through the deflater
+                bufferedOutputStream.flush();
+                bufferedOutputStream = new BufferedOutputStream(
+                        new DeflaterOutputStream(outputStream, deflater, Config.WRITE_BUFFER_SIZE, true),
+                        Config.WRITE_BUFFER_SIZE);
+                compressing = true;
+            }
+        }
+
         @Override
         public void run() {
             try {
+                bufferedOutputStream = new BufferedOutputStream(outputStream, Config.WRITE_BUFFER_SIZE);
                 while (true) {
-                    Message message = messageQueue.take();
-                    if(message instanceof ErrorMessage err) {
-                        System.err.printf("""
-                                Sending error to client %d:
-                                  - type            : %s
-                                  - action          : %s
-                                  - relative to     : %d
-                                  - seconds to retry: %d
-                                  - info            : %s
-                                """,
-                                Client.this.clientId,
-                                err.errorType,
-                                err.action,
-                                err.relativeToMessage,
-                                err.secondsToRetry,
-                                err.info);
+                    write(messageQueue.take());
+                    // write everything else that's already queued (or arrives within the linger time) before flushing
+                    int batched = 1;
+                    long deadline = System.nanoTime() + Config.WRITE_LINGER_MICROS * 1000L;
+                    while(batched < Config.WRITE_BATCH_SIZE) {
+                        long remaining = deadline - System.nanoTime();
+                        Message message = remaining > 0 ? messageQueue.poll(remaining, TimeUnit.NANOSECONDS) : messageQueue.poll();
+                        if(message == null) break;
+                        write(message);
+                        batched++;
                     }
-                    outputStream.write((message.withMessageId(getMessageIdCounter()).toJson() + "\n")
-                            .getBytes(StandardCharsets.UTF_8));
-                    increaseMessageIdCounter();
+                    // with compression this is also a sync flush, so the client can decode everything sent so far
+                    bufferedOutputStream.flush();
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             } catch (InterruptedException ignored) {
             } finally {
                 disconnect();
+                // frees its native memory right away instead of whenever it gets garbage collected
+                if(deflater != null) {
+                    deflater.end();
+                }
             }
         }
     }
 
-    private class InputReadingThread extends Thread {
+    private class InputReadingThread implements Runnable {
         @Override
         public void run() {
             try {
+                byte[] buffer = new byte[Config.READ_BUFFER_SIZE];
                 int read;
                 while(!Thread.interrupted()) {
-                    read = inputStream.read();
+                    read = inputStream.read(buffer);
                     if(read == -1) break;
-                    if(read != ((int) '\n')) {
-                        inputBuffer.append((char) read);
-                    } else if(!inputBuffer.isEmpty()) {
-                        String message = inputBuffer.toString();
-                        try {
-                            JsonObject json = Json.fromJsonObject(message);
-                            String messageType;
-                            if(json.has("message_type")) {
-                                messageType = json.get("message_type").getAsString();
-                            } else {
-                                throw new MessageMissingContentsException("Missing message_type field!");
-                            }
-
-                            Message parsedMessage = switch(messageType.toUpperCase()) {
-                                case WelcomeMessage.MESSAGE_TYPE -> WelcomeMessage.fromJson(json);
-                                case DisconnectMessage.MESSAGE_TYPE -> DisconnectMessage.fromJson(json);
-                                case ErrorMessage.MESSAGE_TYPE -> ErrorMessage.fromJson(json);
-                                case LibraryActionMessage.MESSAGE_TYPE -> LibraryActionMessage.fromJson(json);
-                                case TestMessage.MESSAGE_TYPE -> TestMessage.fromJson(json);
-                                case LibraryActionRequestMessage.MESSAGE_TYPE -> LibraryActionRequestMessage.fromJson(json);
-                                default -> {
-                                    throw new MessageInvalidContentsException("Unknown message_type '"+messageType+"'");
-                                }
-                            };
-                            parsedMessage.handle(Client.this);
-
-                            System.out.println("Received message w/ type " + parsedMessage.getMessageType());
-
-                            increaseMessageIdCounter();
-                        } catch (JsonSyntaxException | UnsupportedOperationException e) {
-                            increaseMessageIdCounter();
-                            sendError(ErrorMessage.ErrorType.MESSAGE_FORMAT, getMessageIdCounter()-1, e.getMessage());
-                        } catch (MessageInvalidContentsException e) {
-                            increaseMessageIdCounter();
-                            sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, getMessageIdCounter()-1, e.getMessage());
-                        } catch (MessageMissingContentsException e) {
-                            increaseMessageIdCounter();
-                            sendError(ErrorMessage.ErrorType.MESSAGE_MISSING_CONTENTS, getMessageIdCounter()-1, e.getMessage());
-                        } catch (MessageException ignored) {
-                            //unreachable
-                        }
-
-
-                        inputBuffer.setLength(0);
-                    }
+                    frameDecoder.decode(ByteBuffer.wrap(buffer, 0, read));
                 }
             } catch (IOException e) {
 
                 throw new RuntimeException(e);
             } finally {
                 disconnect();
+                frameDecoder.close();
             }
         }
     }
+
+    /**
+     * What to do when a client's queue is full because it's not reading messages as fast as they're sent to it
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Wait until there is space in the queue. Falls back to {@link #RESYNC} on threads that can't wait.
+         */
+        BLOCK,
+        /**
+         * Drop every queued message and tell the client to reconnect, so it catches up with the library actions and
+         * hashes instead of every single message it missed
+         */
+        RESYNC,
+        /**
+         * Disconnect the client
+         */
+        DISCONNECT
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+/**
+ * Server settings. They are read from system properties (for example {@code -Dpmp.hash.threads=4}) since there is no
+ * config file yet.
+ */
+public class Config {
+    /**
+     * How many threads hash files when the library gets scanned
+     */
+    public static final int HASH_THREADS = Integer.getInteger("pmp.hash.threads",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * How many files can be read at the same time when the library gets scanned. Should be set to 1 if the library
+     * is on a spinning disk so it doesn't keep seeking back and forth between files.
+     */
+    public static final int HASH_IO_PARALLELISM = Integer.getInteger("pmp.hash.ioParallelism",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * Size in bytes of the buffers files are read with while being hashed. There's at most
+     * {@link #HASH_IO_PARALLELISM} of them, since that's how many files get read at the same time anyway.
+     */
+    public static final int HASH_BUFFER_SIZE = Integer.getInteger("pmp.hash.bufferSize", 1048576);
+    /**
+     * What library files are fingerprinted with, one of the ids of {@link HashAlgorithm}. The
+     * {@link LibraryDigest} and the checksums in downloads use this one.
+     */
+    public static final HashAlgorithm HASH_ALGORITHM = HashAlgorithm.fromId(System.getProperty("pmp.hash.algorithm", "crc32"));
+    /**
+     * Another algorithm library files are fingerprinted with at the same time, or null for none. Meant for while
+     * clients move from one algorithm to another: clients can pick either one, and those that don't pick get crc32
+     * if it's one of the two.
+     */
+    public static final HashAlgorithm SECONDARY_HASH_ALGORITHM = System.getProperty("pmp.hash.secondaryAlgorithm") == null
+            ? null : HashAlgorithm.fromId(System.getProperty("pmp.hash.secondaryAlgorithm"));
+    /**
+     * If files changed in the library by something other than the server get noticed while it's running
+     * @see LibraryWatcher
+     */
+    public static final boolean WATCH_LIBRARY = Boolean.parseBoolean(System.getProperty("pmp.watch", "true"));
+    /**
+     * How long in milliseconds nothing must happen to a changed library file before it gets looked at
+     */
+    public static final int WATCH_DEBOUNCE_MILLIS = Integer.getInteger("pmp.watch.debounce", 2000);
+    /**
+     * How often in seconds the whole library gets compared against the index in case the file system missed a
+     * change. 0 or less to only do it when the file system says it dropped changes.
+     */
+    public static final int WATCH_RESCAN_INTERVAL_SECONDS = Integer.getInteger("pmp.watch.rescanInterval", 3600);
+    /**
+     * How often {@link Metrics} get printed, in seconds. 0 or less to never print them.
+     */
+    public static final int METRICS_INTERVAL_SECONDS = Integer.getInteger("pmp.metrics.interval", 60);
+    /**
+     * If the threads of each {@link Client} and the handshakes should run on virtual threads instead of platform
+     * threads, which makes idle connections a lot cheaper
+     */
+    public static final boolean VIRTUAL_CLIENT_THREADS = Boolean.getBoolean("pmp.clients.virtualThreads");
+    /**
+     * How clients connect to the message server: "blocking" for a thread (or virtual thread) pair per client, "nio"
+     * for {@link NioMessageServer}
+     */
+    public static final String TRANSPORT = System.getProperty("pmp.transport", "blocking");
+    /**
+     * How many event loop threads {@link NioMessageServer} uses
+     */
+    public static final int NIO_EVENT_LOOPS = Integer.getInteger("pmp.nio.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    /**
+     * Size in bytes of the buffer data from each client gets read into
+     */
+    public static final int READ_BUFFER_SIZE = Integer.getInteger("pmp.readBufferSize", 16384);
+    /**
+     * Maximum size in bytes of a single message received from a client. Bigger messages are rejected.
+     */
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("pmp.maxFrameSize", 1048576);
+    /**
+     * Size in bytes of the buffer messages to each client get written into before being flushed
+     */
+    public static final int WRITE_BUFFER_SIZE = Integer.getInteger("pmp.write.bufferSize", 65536);
+    /**
+     * Maximum amount of messages written to a client before flushing
+     */
+    public static final int WRITE_BATCH_SIZE = Integer.getInteger("pmp.write.batchSize", 256);
+    /**
+     * How long in microseconds to wait for more messages to batch before flushing. 0 flushes as soon as the queue is
+     * empty.
+     */
+    public static final int WRITE_LINGER_MICROS = Integer.getInteger("pmp.write.lingerMicros", 0);
+    /**
+     * Maximum amount of actions in each {@link dev.blackilykat.messages.LibraryActionsMessage} when replaying the
+     * action log to a client
+     */
+    public static final int REPLAY_PAGE_SIZE = Integer.getInteger("pmp.replay.pageSize", 500);
+    /**
+     * How many of the most recent library actions are never compacted
+     * @see ActionLogCompactor
+     */
+    public static final int COMPACTION_RETAIN_ACTIONS = Integer.getInteger("pmp.compaction.retain", 10000);
+    /**
+     * How often in seconds the action log gets compacted, also done once on startup. 0 or less to never compact it.
+     */
+    public static final int COMPACTION_INTERVAL_SECONDS = Integer.getInteger("pmp.compaction.interval", 3600);
+    /**
+     * Maximum amount of messages waiting to be sent to a single client
+     */
+    public static final int CLIENT_QUEUE_CAPACITY = Integer.getInteger("pmp.client.queueCapacity", 10000);
+    /**
+     * What to do when a client's queue is full, one of "block", "resync" or "disconnect"
+     * @see Client.SlowConsumerPolicy
+     */
+    public static final Client.SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            Client.SlowConsumerPolicy.valueOf(System.getProperty("pmp.client.slowConsumerPolicy", "resync").toUpperCase());
+    /**
+     * What the file transfer server runs requests on: "fixed" for a pool of {@link #HTTP_THREADS} threads, "virtual"
+     * for a virtual thread per request
+     */
+    public static final String HTTP_EXECUTOR = System.getProperty("pmp.http.executor", "fixed");
+    /**
+     * How many threads the file transfer server uses with the "fixed" executor
+     */
+    public static final int HTTP_THREADS = Integer.getInteger("pmp.http.threads", 16);
+    /**
+     * How many file transfers a single address can have going on at the same time
+     */
+    public static final int HTTP_MAX_TRANSFERS_PER_IP = Integer.getInteger("pmp.http.maxTransfersPerIp", 4);
+    /**
+     * Port of the {@link ZeroCopyDownloadServer}, or -1 to not start it
+     */
+    public static final int DOWNLOAD_PORT = Integer.getInteger("pmp.download.port", 5002);
+    /**
+     * How long in seconds a connection to the {@link ZeroCopyDownloadServer} has to send a whole request, including
+     * the time it sits idle before it when kept alive, before it gets closed. Each open connection takes up one of the
+     * server's threads.
+     */
+    public static final int DOWNLOAD_IDLE_TIMEOUT_SECONDS = Integer.getInteger("pmp.download.idleTimeout", 30);
+    /**
+     * How long in seconds a started upload can go without receiving anything before its action gets cancelled
+     */
+    public static final int UPLOAD_IDLE_TIMEOUT_SECONDS = Integer.getInteger("pmp.upload.idleTimeout", 600);
+    /**
+     * If clients can ask for their connection to be compressed with a
+     * {@link dev.blackilykat.messages.TransportOptionsMessage}. Each compressed connection keeps a deflate and an
+     * inflate context, a few hundred kilobytes, for as long as it's open.
+     */
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("pmp.compression", "true"));
+    /**
+     * Deflate level of compressed connections, from 1 (fastest) to 9 (smallest)
+     */
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("pmp.compression.level", 6);
+    /**
+     * How long in milliseconds to wait for a client to pick its transport options before sending it the rest of the
+     * handshake anyway. Only waited for if there are options to pick.
+     */
+    public static final int TRANSPORT_NEGOTIATION_TIMEOUT_MILLIS = Integer.getInteger("pmp.transport.negotiationTimeout", 1000);
+    /**
+     * If clients can switch their connection to the binary format with a
+     * {@link dev.blackilykat.messages.TransportOptionsMessage}
+     */
+    public static final boolean BINARY_FORMAT = Boolean.parseBoolean(System.getProperty("pmp.binaryFormat", "true"));
+    /**
+     * If the whole {@link dev.blackilykat.messages.LibraryHashesMessage} gets sent to every client that connects. If
+     * false, clients only get the root of the {@link LibraryDigest} and have to ask for what they need.
+     */
+    public static final boolean SEND_HASHES_ON_CONNECT = Boolean.parseBoolean(System.getProperty("pmp.sendHashesOnConnect", "true"));
+    /**
+     * If library files are kept in the {@link BlobStore}. Indexing a file also calculates its sha256 hash when enabled,
+     * which is a lot slower than its crc32 checksum alone, and enabling it on an existing library reads every file
+     * again on the next start.
+     */
+    public static final boolean BLOB_STORE = Boolean.parseBoolean(System.getProperty("pmp.blobStore", "false"));
+    /**
+     * If library files are hard links to their blob instead of copies, see {@link BlobStore}. Only safe if nothing
+     * other than the server writes to the library.
+     */
+    public static final boolean BLOB_STORE_HARD_LINKS = Boolean.getBoolean("pmp.blobStore.hardLinks");
+}
@@ -0,0 +1,174 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Works out how to answer a download request for a library file based on its headers, so that
+ * {@link FileTransferHttpHandler} and {@link ZeroCopyDownloadServer} behave the same way. Supports a single byte range
+ * per request, requests with multiple ranges get the whole file.
+ * <br />Responses carry the file's checksum as a strong ETag, and in X-Checksum as the same number sent in
+ * {@link dev.blackilykat.messages.LibraryHashesMessage} (with the algorithm's id in X-Checksum-Algorithm). Along with
+ * Last-Modified, this lets clients revalidate their copy with If-None-Match or If-Modified-Since and get a 304 instead
+ * of downloading it again.
+ */
+public class DownloadResponse {
+    /**
+     * Cache-Control of every download. Files can be replaced at any time, so clients can keep them but must
+     * revalidate before using them.
+     */
+    private static final String CACHE_CONTROL = "no-cache";
+    /**
+     * The http status code, either 200, 206, 304 or 416
+     */
+    public final int status;
+    /**
+     * The first byte of the file to send
+     */
+    public final long start;
+    /**
+     * How many bytes of the file to send
+     */
+    public final long length;
+    /**
+     * Headers to send other than Content-Length
+     */
+    public final Map<String, String> headers = new LinkedHashMap<>();
+
+    private DownloadResponse(int status, long start, long length) {
+        this.status = status;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * @param file The requested file
+     * @param size The size of the file as it will be sent
+     * @param requestHeaders Gets the value of a request header from its lowercase name, or null if missing
+     */
+    public static DownloadResponse create(File file, long size, Function<String, String> requestHeaders) {
+        LibraryIndex.Entry entry = LibraryIndex.entry(file);
+        String etag = LibraryIndex.etag(file);
+        long lastModified = file.lastModified();
+        String range = requestHeaders.apply("range");
+        String ifRange = requestHeaders.apply("if-range");
+        DownloadResponse response = null;
+        if(notModified(etag, lastModified, requestHeaders.apply("if-none-match"), requestHeaders.apply("if-modified-since"))) {
+            response = new DownloadResponse(304, 0, 0);
+        }
+        // if the file changed since the client got the first part, it needs to get the new one from the start
+        boolean rangeApplies = response == null && range != null && (ifRange == null || ifRange.equals(etag));
+        if(rangeApplies) {
+            long[] bounds = parseRange(range, size);
+            if(bounds == null) {
+                response = new DownloadResponse(200, 0, size);
+            } else if(bounds.length == 0) {
+                response = new DownloadResponse(416, 0, 0);
+                response.headers.put("Content-Range", "bytes */" + size);
+            } else {
+                response = new DownloadResponse(206, bounds[0], bounds[1] - bounds[0] + 1);
+                response.headers.put("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+            }
+        }
+        if(response == null) {
+            response = new DownloadResponse(200, 0, size);
+        }
+        response.headers.put("Accept-Ranges", "bytes");
+        response.headers.put("Cache-Control", CACHE_CONTROL);
+        response.headers.put("Last-Modified", formatDate(lastModified));
+        if(etag != null) {
+            response.headers.put("ETag", etag);
+            response.headers.put("X-Checksum", String.valueOf(entry.checksum));
+            response.headers.put("X-Checksum-Algorithm", Config.HASH_ALGORITHM.id);
+        }
+        return response;
+    }
+
+    /**
+     * @return Whether the client's copy is the same as the file. If-Modified-Since is only looked at when there is no
+     * If-None-Match, like rfc 9110 says.
+     */
+    private static boolean notModified(String etag, long lastModified, String ifNoneMatch, String ifModifiedSince) {
+        if(ifNoneMatch != null) {
+            if(ifNoneMatch.trim().equals("*")) return true;
+            if(etag == null) return false;
+            for(String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // weak comparison
+                if(tag.startsWith("W/")) tag = tag.substring(2);
+                if(tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        if(ifModifiedSince != null) {
+            try {
+                Instant since = Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifModifiedSince));
+                // http dates don't have milliseconds
+                return lastModified / 1000 <= since.getEpochSecond();
+            } catch(DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String formatDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * @return The first and last byte (inclusive) of the range, an empty array if the range can't be satisfied, or
+     * null if the header is not a single valid byte range and should be ignored
+     */
+    private static long[] parseRange(String range, long size) {
+        if(!range.startsWith("bytes=") || range.contains(",")) return null;
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if(first.isEmpty()) {
+                // last N bytes
+                if(last.isEmpty()) return null;
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0 || size == 0) return new long[0];
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if(start < 0) return null;
+            if(!last.isEmpty() && Long.parseLong(last) < start) return null;
+            if(start >= size) return new long[0];
+            return new long[]{start, end};
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+}
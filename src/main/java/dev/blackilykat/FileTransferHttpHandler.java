@@ -25,23 +25,109 @@ import com.sun.net.httpserver.HttpHandler;
 import dev.blackilykat.messages.LibraryActionMessage;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 
+/**
+ * Serves library files and receives the files of pending ADD and REPLACE actions. Files can either be uploaded in one
+ * go (POST for ADD, PUT for REPLACE) or in chunks with PATCH, which can be resumed if the connection breaks:
+ * <ul>
+ *     <li>{@code PATCH /<file>?action_id=..&client_id=..&offset=..[&checksum=..][&total=..]} writes the body at the
+ *     offset, optionally checking it against its crc32 checksum. The action completes once {@code total} bytes
+ *     are received.</li>
+ *     <li>{@code HEAD /<file>?action_id=..&client_id=..} tells how many bytes were received so far, in the
+ *     Upload-Offset header.</li>
+ * </ul>
+ * Uploads are written to {@link Storage#UPLOADS} and only moved into the library once complete.
+ */
 //TODO authentication when i get around to it with the other socket as well
 public class FileTransferHttpHandler implements HttpHandler {
+    /**
+     * Limits how many transfers each address can have going on at once, see {@link Config#HTTP_MAX_TRANSFERS_PER_IP}.
+     * Shared with {@link ZeroCopyDownloadServer}. Addresses without transfers going on aren't in the map.
+     */
+    private static final Map<InetAddress, Integer> transfersPerIp = new ConcurrentHashMap<>();
+
+    /**
+     * Takes one of the transfer slots of an address
+     * @return Whether a slot was available. If it was, it must be given back with {@link #endTransfer(InetAddress)}
+     */
+    public static boolean startTransfer(InetAddress address) {
+        if(transfersPerIp.merge(address, 1, Integer::sum) > Config.HTTP_MAX_TRANSFERS_PER_IP) {
+            releaseTransfer(address);
+            return false;
+        }
+        Metrics.activeTransfers.incrementAndGet();
+        return true;
+    }
+
+    public static void endTransfer(InetAddress address) {
+        Metrics.activeTransfers.decrementAndGet();
+        releaseTransfer(address);
+    }
+
+    /**
+     * Gives back a slot of an address, removing the address once it has no transfers left so the map doesn't keep
+     * every address that ever connected
+     */
+    private static void releaseTransfer(InetAddress address) {
+        transfersPerIp.computeIfPresent(address, (ignored, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Creates the executor the file transfer server should run the handler on, as set by {@link Config#HTTP_EXECUTOR}
+     */
+    public static ExecutorService createExecutor() {
+        if(Config.HTTP_EXECUTOR.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(Config.HTTP_THREADS);
+    }
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        InetAddress address = exchange.getRemoteAddress().getAddress();
+        if(!startTransfer(address)) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(429, -1);
+            exchange.close();
+            return;
+        }
+        try {
+            handleTransfer(exchange);
+        } finally {
+            endTransfer(address);
+            exchange.close();
+        }
+    }
+
+    private void handleTransfer(HttpExchange exchange) throws IOException {
         String filename = exchange.getRequestURI().getPath().replace("..", "");
         File file = new File(Storage.LIBRARY.getAbsolutePath(), filename);
         int actionId = -1;
         int clientId = -1;
+        long offset = -1;
+        long total = -1;
+        Long checksum = null;
         String query = exchange.getRequestURI().getQuery();
         if(query == null) {
             query = "";
         }
         String method = exchange.getRequestMethod();
-        if(query.isEmpty() && (method.equals("POST") || method.equals("PUT"))) {
+        if(query.isEmpty() && (method.equals("POST") || method.equals("PUT") || method.equals("PATCH"))) {
             System.out.println(method);
             exchange.sendResponseHeaders(400, 0);
             exchange.getResponseBody().close();
@@ -50,88 +136,299 @@ public class FileTransferHttpHandler implements HttpHandler {
         for(String kv : query.split("&")) {
             String[] parts = kv.split("=");
             if(parts.length != 2) continue;
-            if(parts[0].equals("action_id")) {
-                try {
-                    actionId = Integer.parseInt(parts[1]);
-                } catch(NumberFormatException e) {
-                    exchange.sendResponseHeaders(400, 0);
-                    exchange.getResponseBody().close();
-                    return;
-                }
-            } else if(parts[0].equals("client_id")) {
-                try {
-                    clientId = Integer.parseInt(parts[1]);
-                } catch(NumberFormatException e) {
-                    exchange.sendResponseHeaders(400, 0);
-                    exchange.getResponseBody().close();
-                    return;
+            try {
+                switch(parts[0]) {
+                    case "action_id" -> actionId = Integer.parseInt(parts[1]);
+                    case "client_id" -> clientId = Integer.parseInt(parts[1]);
+                    case "offset" -> offset = Long.parseLong(parts[1]);
+                    case "total" -> total = Long.parseLong(parts[1]);
+                    case "checksum" -> checksum = Long.parseLong(parts[1]);
                 }
+            } catch(NumberFormatException e) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.getResponseBody().close();
+                return;
             }
         }
-        // probably the scariest condition ive written in the ever
-        if((method.equals("PUT") || method.equals("POST"))
-                && (!filename.substring(1).equals(LibraryActionMessage.pendingAction.fileName)
-                        || actionId != LibraryActionMessage.pendingAction.actionId
-                        || clientId != LibraryActionMessage.pendingAction.clientId
-                        || LibraryActionMessage.pendingAction.isCancelled())) {
-            // not sure if this is the appropriate
-            exchange.sendResponseHeaders(403, 0);
-            exchange.getResponseBody().close();
-            return;
+        // a HEAD with a query asks how much of an upload was received, one without asks about a library file
+        boolean upload = method.equals("PUT") || method.equals("POST") || method.equals("PATCH")
+                || (method.equals("HEAD") && !query.isEmpty());
+        LibraryActionMessage.PendingAction pendingAction = null;
+        if(upload) {
+            pendingAction = LibraryActionMessage.pendingActions.get(filename.substring(1));
+            if(pendingAction == null
+                    || actionId != pendingAction.actionId
+                    || clientId != pendingAction.clientId
+                    || pendingAction.isCancelled()) {
+                // not sure if this is the appropriate
+                exchange.sendResponseHeaders(403, 0);
+                exchange.getResponseBody().close();
+                return;
+            }
         }
         switch(method) {
-            case "GET" -> {
-                if(!file.exists()) {
-                    exchange.sendResponseHeaders(404, 0);
-                    exchange.getResponseBody().close();
+            case "GET" -> download(exchange, file, true);
+            case "HEAD" -> {
+                if(pendingAction == null) {
+                    download(exchange, file, false);
                     return;
                 }
-                exchange.sendResponseHeaders(200, file.length());
-                OutputStream outputStream = exchange.getResponseBody();
-                Files.copy(file.toPath(), outputStream);
-                outputStream.close();
+                exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(pendingAction.uploadedBytes));
+                exchange.sendResponseHeaders(200, -1);
             }
             case "POST" -> {
-                if(LibraryActionMessage.pendingAction.actionType != LibraryActionMessage.Type.ADD) {
+                if(pendingAction.actionType != LibraryActionMessage.Type.ADD) {
                     exchange.sendResponseHeaders(403, 0);
                     exchange.getResponseBody().close();
                     return;
                 }
-                if(file.exists()) {
-                    LibraryActionMessage.pendingAction.cancelled = true;
-                    exchange.sendResponseHeaders(400, 0);
-                    exchange.getResponseBody().close();
-                    return;
-                }
-                LibraryActionMessage.pendingAction.started = true;
-                InputStream inputStream = exchange.getRequestBody();
-                Files.copy(inputStream, file.toPath());
-                inputStream.close();
-                exchange.sendResponseHeaders(200, 0);
-                exchange.getResponseBody().close();
-                LibraryActionMessage.pendingAction.finished = true;
+                if(!checkTarget(exchange, file, pendingAction)) return;
+                receive(exchange, file, pendingAction);
             }
             case "PUT" -> {
-                if(LibraryActionMessage.pendingAction.actionType != LibraryActionMessage.Type.REPLACE) {
+                if(pendingAction.actionType != LibraryActionMessage.Type.REPLACE) {
                     exchange.sendResponseHeaders(403, 0);
                     exchange.getResponseBody().close();
                     return;
                 }
-                LibraryActionMessage.pendingAction.started = true;
-                InputStream inputStream = exchange.getRequestBody();
-                Files.copy(inputStream, file.toPath());
-                inputStream.close();
-                exchange.sendResponseHeaders(200, 0);
-                exchange.getResponseBody().close();
-                LibraryActionMessage.pendingAction.finished = true;
+                receive(exchange, file, pendingAction);
+            }
+            case "PATCH" -> {
+                if(offset < 0) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                if(!checkTarget(exchange, file, pendingAction)) return;
+                receiveChunk(exchange, file, pendingAction, offset, total, checksum);
             }
             default -> {
                 exchange.sendResponseHeaders(404, 0);
                 exchange.getResponseBody().close();
             }
         }
-        if(method.equals("PUT") || method.equals("POST")) {
-            Client.broadcastExcept(LibraryActionMessage.pendingAction.toMessage(), LibraryActionMessage.pendingAction.clientId);
+    }
+
+    /**
+     * Answers a GET or HEAD request for a library file
+     * @param sendBody False for HEAD requests, which only get the headers (including the size and checksum)
+     * @see DownloadResponse
+     */
+    private static void download(HttpExchange exchange, File file, boolean sendBody) throws IOException {
+        if(!file.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        try(FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DownloadResponse response = DownloadResponse.create(file, fileChannel.size(),
+                    exchange.getRequestHeaders()::getFirst);
+            response.headers.forEach(exchange.getResponseHeaders()::set);
+            if(!sendBody || response.status == 304) {
+                if(response.status != 304) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(response.length));
+                }
+                exchange.sendResponseHeaders(response.status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(response.status, response.length == 0 ? -1 : response.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            fileChannel.position(response.start);
+            InputStream inputStream = Channels.newInputStream(fileChannel);
+            byte[] buffer = new byte[65536];
+            long remaining = response.length;
+            while(remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0) break;
+                outputStream.write(buffer, 0, read);
+                remaining -= read;
+                Metrics.bytesSent.add(read);
+            }
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Makes sure a file isn't added if it already exists, cancelling the action if it does
+     * @return Whether the upload can go ahead
+     */
+    private static boolean checkTarget(HttpExchange exchange, File file, LibraryActionMessage.PendingAction pendingAction) throws IOException {
+        if(pendingAction.actionType == LibraryActionMessage.Type.ADD && file.exists()) {
+            pendingAction.cancelled = true;
+            pendingAction.discardUpload();
+            LibraryActionMessage.pendingActions.remove(pendingAction.fileName, pendingAction);
+            exchange.sendResponseHeaders(400, 0);
+            exchange.getResponseBody().close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Receives the whole file in the request body, then completes the action
+     */
+    private static void receive(HttpExchange exchange, File file, LibraryActionMessage.PendingAction pendingAction) throws IOException {
+        if(!pendingAction.uploadLock.tryLock()) {
+            // another request is uploading to this action right now
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        try {
+            if(!pendingAction.tryStart()) {
+                // timed out right before the transfer started
+                exchange.sendResponseHeaders(403, 0);
+                exchange.getResponseBody().close();
+                return;
+            }
+            try {
+                try(FileChannel channel = FileChannel.open(pendingAction.uploadFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    pendingAction.uploadedBytes = copy(exchange, channel, new CRC32(), pendingAction);
+                }
+                if(!complete(file, pendingAction)) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+            } catch(IOException e) {
+                pendingAction.cancelled = true;
+                pendingAction.discardUpload();
+                LibraryActionMessage.pendingActions.remove(pendingAction.fileName, pendingAction);
+                throw e;
+            }
+        } finally {
+            pendingAction.uploadLock.unlock();
+        }
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().close();
+    }
+
+    /**
+     * Receives part of the file starting at the given offset, which must not be after the end of what was received so
+     * far. Anything previously received after the offset gets overwritten. If a checksum is given and the chunk doesn't
+     * match it, the chunk is thrown away. Once the total size is reached the action gets completed.
+     * <br />Always replies with the amount of bytes received so far in the Upload-Offset header, so the client knows
+     * where to continue from.
+     */
+    private static void receiveChunk(HttpExchange exchange, File file, LibraryActionMessage.PendingAction pendingAction,
+                                     long offset, long total, Long checksum) throws IOException {
+        if(!pendingAction.uploadLock.tryLock()) {
+            // another chunk is being uploaded right now
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        int status;
+        try {
+            if(!pendingAction.tryStart()) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if(offset > pendingAction.uploadedBytes) {
+                status = 409;
+            } else {
+                CRC32 crc = new CRC32();
+                try(FileChannel channel = FileChannel.open(pendingAction.uploadFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    channel.truncate(offset);
+                    channel.position(offset);
+                    // whatever was after the offset is gone now
+                    pendingAction.uploadedBytes = offset;
+                    long written = copy(exchange, channel, crc, pendingAction);
+                    if(checksum == null || crc.getValue() == checksum) {
+                        pendingAction.uploadedBytes = offset + written;
+                    }
+                } catch(IOException e) {
+                    // keep what arrived unless it has to be checked first
+                    if(checksum == null) {
+                        pendingAction.uploadedBytes = pendingAction.uploadFile.length();
+                    }
+                    throw e;
+                } finally {
+                    pendingAction.lastActivity = Instant.now();
+                }
+                if(checksum != null && crc.getValue() != checksum) {
+                    status = 400;
+                } else if(total >= 0 && pendingAction.uploadedBytes > total) {
+                    status = 400;
+                } else if(total >= 0 && pendingAction.uploadedBytes == total) {
+                    try {
+                        status = complete(file, pendingAction) ? 200 : 400;
+                    } catch(IOException e) {
+                        pendingAction.cancelled = true;
+                        pendingAction.discardUpload();
+                        LibraryActionMessage.pendingActions.remove(pendingAction.fileName, pendingAction);
+                        throw e;
+                    }
+                } else {
+                    status = 204;
+                }
+            }
+            exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(pendingAction.uploadedBytes));
+        } finally {
+            pendingAction.uploadLock.unlock();
+        }
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * Copies the whole request body to the channel at its current position, keeping the action from timing out while
+     * data keeps arriving. If the action gets cancelled in the meantime the request is closed, which makes this throw.
+     * @return How many bytes were copied
+     */
+    private static long copy(HttpExchange exchange, FileChannel channel, CRC32 crc,
+                             LibraryActionMessage.PendingAction pendingAction) throws IOException {
+        InputStream inputStream = exchange.getRequestBody();
+        byte[] buffer = new byte[65536];
+        long copied = 0;
+        int read;
+        // no response has been started yet, so closing the exchange closes the connection right away
+        pendingAction.uploadConnection = exchange;
+        try {
+            while((read = inputStream.read(buffer)) >= 0) {
+                pendingAction.lastActivity = Instant.now();
+                crc.update(buffer, 0, read);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while(byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+                copied += read;
+                Metrics.bytesReceived.add(read);
+            }
+        } finally {
+            pendingAction.uploadConnection = null;
+        }
+        inputStream.close();
+        return copied;
+    }
+
+    /**
+     * Atomically moves the uploaded file into the library, then broadcasts the action and frees up its slot. If the
+     * client said the hash of the file and the upload doesn't match it, the action gets cancelled instead.
+     * @return Whether the action was completed
+     */
+    private static boolean complete(File file, LibraryActionMessage.PendingAction pendingAction) throws IOException {
+        // hashed once for both checking the hash and indexing the file
+        LibraryIndex.Hashes hashes = LibraryIndex.hash(pendingAction.uploadFile,
+                Config.BLOB_STORE || pendingAction.hash != null);
+        if(pendingAction.isCancelled()) {
+            // swept away while being hashed
+            return false;
+        }
+        if(pendingAction.hash != null && !hashes.sha256.equals(pendingAction.hash)) {
+            pendingAction.cancelled = true;
+            pendingAction.discardUpload();
+            LibraryActionMessage.pendingActions.remove(pendingAction.fileName, pendingAction);
+            return false;
+        }
+        try {
+            Files.move(pendingAction.uploadFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            // uploads are on a different file system than the library
+            Files.move(pendingAction.uploadFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
+        LibraryIndex.update(file, hashes);
+        pendingAction.finished = true;
+        LibraryActionMessage message = pendingAction.toMessage();
+        message.hash = BlobStore.hashOf(pendingAction.fileName);
+        Client.broadcastExcept(message, pendingAction.clientId);
+        LibraryActionMessage.pendingActions.remove(pendingAction.fileName, pendingAction);
+        return true;
     }
 }
@@ -0,0 +1,268 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits the bytes received from a client into newline-delimited frames. Frames are only decoded as UTF-8 once they're
+ * complete, so multi-byte characters split across reads don't get mangled. Frames bigger than the maximum size are
+ * discarded up to the next newline instead of being kept in memory.
+ * <br />Once compression is turned on (see {@link dev.blackilykat.messages.TransportOptionsMessage}) the bytes are
+ * inflated first, a chunk at a time, so a small compressed frame can't make it use more than the maximum size either.
+ * Once the binary format is turned on, frames are prefixed by their length instead of ending with a newline.
+ */
+public class FrameDecoder {
+    private static final int INFLATE_CHUNK_SIZE = 8192;
+    private final int maxFrameSize;
+    private final Client client;
+    /**
+     * Holds the start of a frame that didn't fit in a single read
+     */
+    private byte[] pending = new byte[1024];
+    private int pendingLength = 0;
+    /**
+     * If the current frame is too big and everything up to the next newline should be ignored
+     */
+    private boolean discarding = false;
+    /**
+     * Decompresses what's received once the client turned on compression, null before that
+     */
+    private Inflater inflater = null;
+    private byte[] inflated = null;
+    /**
+     * If frames are in the binary format (a varint length followed by that many bytes) instead of being lines
+     */
+    private boolean binary = false;
+    /**
+     * Set when a frame changes how the rest of the bytes must be decoded, so decoding can stop right after it
+     */
+    private boolean switched = false;
+    /**
+     * Length of the binary frame being read, or -1 while its length is still being read
+     */
+    private int frameLength = -1;
+    private int lengthValue = 0;
+    private int lengthShift = 0;
+    /**
+     * How many bytes of an oversize binary frame are still left to skip
+     */
+    private long skipping = 0;
+
+    public FrameDecoder(Client client, int maxFrameSize) {
+        this.client = client;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Decodes everything between the position and limit of the buffer, passing every complete frame to
+     * {@link Client#handleFrame(String)}. The buffer must be backed by an array. Leaves the buffer fully consumed.
+     */
+    public void decode(ByteBuffer buffer) {
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        buffer.position(buffer.limit());
+        receive(buffer.array(), start, end);
+    }
+
+    /**
+     * Makes everything after the frame currently being handled go through an inflater. Must be called while handling
+     * a frame.
+     */
+    public void enableInflate() {
+        inflater = new Inflater();
+        inflated = new byte[INFLATE_CHUNK_SIZE];
+        switched = true;
+    }
+
+    /**
+     * Frees the native memory of the inflater, if there is one. Nothing can be decoded after this, and it must not be
+     * called while something is being decoded.
+     */
+    public void close() {
+        if(inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Makes everything after the frame currently being handled be read as binary frames. Must be called while handling
+     * a frame.
+     */
+    public void enableBinary() {
+        binary = true;
+        switched = true;
+    }
+
+    private void receive(byte[] array, int start, int end) {
+        if(inflater != null) {
+            inflate(array, start, end - start);
+        } else {
+            split(array, start, end);
+        }
+    }
+
+    /**
+     * Splits bytes that aren't compressed (anymore) into frames
+     */
+    private void split(byte[] array, int start, int end) {
+        int consumed = binary ? decodeBinaryFrames(array, start, end) : decodeFrames(array, start, end);
+        if(consumed < end) {
+            // a frame changed the transport, which can only happen before anything is inflated
+            receive(array, consumed, end);
+        }
+    }
+
+    /**
+     * @return Where decoding stopped, which is before the end only if a frame changed the transport
+     */
+    private int decodeFrames(byte[] array, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(array[i] != '\n') continue;
+            if(!discarding) {
+                if(pendingLength == 0) {
+                    // whole frame is in this read, no need to copy it
+                    if(i - start > maxFrameSize) {
+                        client.rejectOversizeFrame();
+                    } else if(i > start) {
+                        client.handleFrame(new String(array, start, i - start, StandardCharsets.UTF_8));
+                    }
+                } else if(append(array, start, i - start)) {
+                    String frame = new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+                    pendingLength = 0;
+                    client.handleFrame(frame);
+                }
+            }
+            discarding = false;
+            start = i + 1;
+            if(switched) {
+                switched = false;
+                return start;
+            }
+        }
+        if(!discarding && start < end) {
+            append(array, start, end - start);
+        }
+        return end;
+    }
+
+    /**
+     * @return Where decoding stopped, which is before the end only if a frame changed the transport
+     */
+    private int decodeBinaryFrames(byte[] array, int start, int end) {
+        int i = start;
+        while(true) {
+            if(skipping > 0) {
+                if(i == end) break;
+                int skipped = (int) Math.min(skipping, end - i);
+                skipping -= skipped;
+                i += skipped;
+                continue;
+            }
+            if(frameLength < 0) {
+                if(i == end) break;
+                byte b = array[i++];
+                lengthValue |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if((b & 0x80) != 0) {
+                    if(lengthShift >= 35) {
+                        System.out.println("Client " + client + " sent an invalid frame length");
+                        client.disconnect();
+                        return end;
+                    }
+                    continue;
+                }
+                frameLength = lengthValue;
+                lengthValue = 0;
+                lengthShift = 0;
+                if(frameLength < 0 || frameLength > maxFrameSize) {
+                    client.rejectOversizeFrame();
+                    skipping = Integer.toUnsignedLong(frameLength);
+                    frameLength = -1;
+                }
+                continue;
+            }
+            if(pendingLength == 0 && end - i >= frameLength) {
+                // whole frame is in this read, no need to copy it
+                client.handleBinaryFrame(array, i, frameLength);
+                i += frameLength;
+            } else {
+                if(i == end) break;
+                int length = Math.min(frameLength - pendingLength, end - i);
+                append(array, i, length);
+                i += length;
+                if(pendingLength < frameLength) continue;
+                pendingLength = 0;
+                client.handleBinaryFrame(pending, 0, frameLength);
+            }
+            frameLength = -1;
+            if(switched) {
+                switched = false;
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private void inflate(byte[] array, int offset, int length) {
+        inflater.setInput(array, offset, length);
+        try {
+            while(true) {
+                int read = inflater.inflate(inflated);
+                if(read > 0) {
+                    split(inflated, 0, read);
+                } else if(inflater.needsInput()) {
+                    return;
+                } else {
+                    // stream ended or wants a dictionary, neither of which clients should do
+                    throw new DataFormatException("Unexpected end of compressed stream");
+                }
+            }
+        } catch(DataFormatException e) {
+            System.out.println("Client " + client + " sent invalid compressed data: " + e.getMessage());
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Adds bytes to the pending frame, or starts discarding it if it gets too big.
+     * @return Whether the bytes were added
+     */
+    private boolean append(byte[] bytes, int offset, int length) {
+        if(pendingLength + length > maxFrameSize) {
+            pendingLength = 0;
+            discarding = true;
+            client.rejectOversizeFrame();
+            if(pending.length > 1024) pending = new byte[1024];
+            return false;
+        }
+        if(pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.min(maxFrameSize, Math.max(pending.length * 2, pendingLength + length)));
+        }
+        System.arraycopy(bytes, offset, pending, pendingLength, length);
+        pendingLength += length;
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * The algorithms library files can be fingerprinted with, see {@link LibraryIndex}. Every fingerprint is a 64 bit
+ * number so they can all be sent the same way in {@link dev.blackilykat.messages.LibraryHashesMessage}.
+ * <br />The server indexes files with {@link Config#HASH_ALGORITHM}, and also with
+ * {@link Config#SECONDARY_HASH_ALGORITHM} if set, which lets clients move to a new algorithm while older ones keep
+ * using the previous one.
+ */
+public enum HashAlgorithm {
+    /**
+     * What the server always used, and what clients that don't pick an algorithm expect. Fast but only 32 bits, so
+     * collisions become likely in libraries with tens of thousands of files.
+     */
+    CRC32("crc32"),
+    /**
+     * Also 32 bits, but calculated with dedicated cpu instructions on most hardware so it's several times faster than
+     * crc32
+     */
+    CRC32C("crc32c"),
+    /**
+     * xxHash64 with seed 0. A full 64 bits like sha256, so collisions don't become likely no matter how big the library
+     * gets, but several times faster than it: slower than crc32c, though usually still faster than the disk. Not meant
+     * to resist someone crafting collisions on purpose.
+     */
+    XXH64("xxh64"),
+    /**
+     * The first 64 bits of the sha256 hash, big endian. Slower, but collisions are practically impossible.
+     */
+    SHA256("sha256");
+
+    /**
+     * How the algorithm is called in messages and settings
+     */
+    public final String id;
+
+    HashAlgorithm(String id) {
+        this.id = id;
+    }
+
+    public Hasher newHasher() {
+        return switch(this) {
+            case CRC32 -> new ChecksumHasher(new CRC32());
+            case CRC32C -> new ChecksumHasher(new CRC32C());
+            case XXH64 -> new Xxh64Hasher();
+            case SHA256 -> new Sha256Hasher();
+        };
+    }
+
+    /**
+     * @return The algorithm with the given id
+     * @throws IllegalArgumentException If there is no such algorithm
+     */
+    public static HashAlgorithm fromId(String id) {
+        for(HashAlgorithm algorithm : values()) {
+            if(algorithm.id.equals(id)) return algorithm;
+        }
+        throw new IllegalArgumentException("Unknown hash algorithm '" + id + "'");
+    }
+
+    /**
+     * Calculates a fingerprint from data given to it in pieces
+     */
+    public interface Hasher {
+        /**
+         * Hashes everything from the position to the limit of the buffer, leaving its position at its limit
+         */
+        void update(ByteBuffer buffer);
+
+        /**
+         * @return The fingerprint of everything hashed so far. Nothing can be hashed after calling this.
+         */
+        long value();
+    }
+
+    private static class ChecksumHasher implements Hasher {
+        private final Checksum checksum;
+
+        private ChecksumHasher(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            checksum.update(buffer);
+        }
+
+        @Override
+        public long value() {
+            return checksum.getValue();
+        }
+    }
+
+    /**
+     * Follows the xxHash64 specification (https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md), keeping up to
+     * one stripe of 32 bytes around between updates since buffers don't have to be a multiple of that
+     */
+    private static class Xxh64Hasher implements Hasher {
+        private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME_3 = 0x165667B19E3779F9L;
+        private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+        private long accumulator1 = PRIME_1 + PRIME_2;
+        private long accumulator2 = PRIME_2;
+        private long accumulator3 = 0;
+        private long accumulator4 = -PRIME_1;
+        private long length = 0;
+        /**
+         * The bytes that weren't enough to make a whole stripe yet
+         */
+        private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            ByteOrder order = buffer.order();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            length += buffer.remaining();
+            if(pending.position() > 0) {
+                while(pending.hasRemaining() && buffer.hasRemaining()) {
+                    pending.put(buffer.get());
+                }
+                if(pending.hasRemaining()) {
+                    buffer.order(order);
+                    return;
+                }
+                pending.flip();
+                stripe(pending);
+                pending.clear();
+            }
+            while(buffer.remaining() >= 32) {
+                stripe(buffer);
+            }
+            pending.put(buffer);
+            buffer.order(order);
+        }
+
+        @Override
+        public long value() {
+            long hash;
+            if(length >= 32) {
+                hash = Long.rotateLeft(accumulator1, 1) + Long.rotateLeft(accumulator2, 7)
+                        + Long.rotateLeft(accumulator3, 12) + Long.rotateLeft(accumulator4, 18);
+                hash = merge(hash, accumulator1);
+                hash = merge(hash, accumulator2);
+                hash = merge(hash, accumulator3);
+                hash = merge(hash, accumulator4);
+            } else {
+                hash = PRIME_5;
+            }
+            hash += length;
+            pending.flip();
+            while(pending.remaining() >= 8) {
+                hash ^= round(0, pending.getLong());
+                hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+            }
+            if(pending.remaining() >= 4) {
+                hash ^= (pending.getInt() & 0xFFFFFFFFL) * PRIME_1;
+                hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+            }
+            while(pending.hasRemaining()) {
+                hash ^= (pending.get() & 0xFFL) * PRIME_5;
+                hash = Long.rotateLeft(hash, 11) * PRIME_1;
+            }
+            hash ^= hash >>> 33;
+            hash *= PRIME_2;
+            hash ^= hash >>> 29;
+            hash *= PRIME_3;
+            hash ^= hash >>> 32;
+            return hash;
+        }
+
+        private void stripe(ByteBuffer buffer) {
+            accumulator1 = round(accumulator1, buffer.getLong());
+            accumulator2 = round(accumulator2, buffer.getLong());
+            accumulator3 = round(accumulator3, buffer.getLong());
+            accumulator4 = round(accumulator4, buffer.getLong());
+        }
+
+        private static long round(long accumulator, long lane) {
+            accumulator += lane * PRIME_2;
+            accumulator = Long.rotateLeft(accumulator, 31);
+            return accumulator * PRIME_1;
+        }
+
+        private static long merge(long hash, long accumulator) {
+            hash ^= round(0, accumulator);
+            return hash * PRIME_1 + PRIME_4;
+        }
+    }
+
+    /**
+     * Also gives the whole hash, which is what {@link BlobStore} names blobs after
+     */
+    public static class Sha256Hasher implements Hasher {
+        private final MessageDigest digest;
+        private byte[] hash = null;
+
+        public Sha256Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException e) {
+                // every java implementation has to support sha256
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public long value() {
+            return ByteBuffer.wrap(hash()).getLong();
+        }
+
+        /**
+         * @return The whole hash
+         */
+        public byte[] hash() {
+            if(hash == null) {
+                hash = digest.digest();
+            }
+            return hash;
+        }
+
+        /**
+         * @return The whole hash as lowercase hex
+         */
+        public String hex() {
+            return HexFormat.of().formatHex(hash());
+        }
+    }
+}
@@ -24,8 +24,12 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.List;
 
 // TODO this is bad pls fix
 public class Json {
@@ -55,4 +59,26 @@ public class Json {
     public static JsonElement fromJsonElement(String json) {
         return GSON.fromJson(json, JsonElement.class);
     }
+
+    /**
+     * Reads an array of strings into the list
+     */
+    public static void readStrings(JsonReader reader, List<String> into) throws IOException {
+        reader.beginArray();
+        while(reader.hasNext()) {
+            into.add(reader.nextString());
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads a string that may be null
+     */
+    public static String nextNullableString(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A two level hash tree of the {@link LibraryIndex}, so clients can check if they're in sync by comparing a single
+ * hash and then only look at the parts of the library that differ.
+ * <br />Files are split in {@link #BUCKETS} buckets by the crc32 of their UTF-8 name (the lowest 8 bits). The digest of
+ * a bucket is the SHA-256 of its files sorted by name (as in {@link String#compareTo(String)}), each written as its
+ * UTF-8 name, a 0 byte and its checksum as 8 big endian bytes. The root is the SHA-256 of the digests of all buckets in
+ * order. Digests are sent as lowercase hex.
+ * <br />There is one digest for each algorithm files are indexed with (see {@link LibraryIndex#algorithms()}), made of
+ * the checksums of that algorithm. Clients get the one of the algorithm their
+ * {@link dev.blackilykat.messages.LibraryHashesMessage} uses, so they can calculate it from the same checksums.
+ * <br />Buckets are only hashed again when something in them changed since the last time they were asked for.
+ */
+public class LibraryDigest {
+    public static final int BUCKETS = 256;
+    private static final Map<HashAlgorithm, LibraryDigest> digestsByAlgorithm = new ConcurrentHashMap<>();
+    private final HashAlgorithm algorithm;
+    private final List<TreeMap<String, Long>> buckets = new ArrayList<>(BUCKETS);
+    /**
+     * The digest of each bucket, null if it changed since it was last calculated
+     */
+    private final byte[][] digests = new byte[BUCKETS][];
+    private byte[] root = null;
+
+    private LibraryDigest(HashAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * @param algorithm One of {@link LibraryIndex#algorithms()}
+     * @return The digest made of the checksums of the algorithm
+     */
+    public static LibraryDigest of(HashAlgorithm algorithm) {
+        return digestsByAlgorithm.computeIfAbsent(algorithm, LibraryDigest::new);
+    }
+
+    /**
+     * Replaces everything with what's currently in the index
+     */
+    public synchronized void rebuild() {
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets.get(i).clear();
+            digests[i] = null;
+        }
+        for(Map.Entry<String, Long> entry : LibraryIndex.snapshot(algorithm).entrySet()) {
+            buckets.get(bucketOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        root = null;
+    }
+
+    public synchronized void put(String fileName, long checksum) {
+        int bucket = bucketOf(fileName);
+        Long previous = buckets.get(bucket).put(fileName, checksum);
+        if(previous == null || previous != checksum) {
+            digests[bucket] = null;
+            root = null;
+        }
+    }
+
+    public synchronized void remove(String fileName) {
+        int bucket = bucketOf(fileName);
+        if(buckets.get(bucket).remove(fileName) != null) {
+            digests[bucket] = null;
+            root = null;
+        }
+    }
+
+    public synchronized String root() {
+        if(root == null) {
+            MessageDigest sha256 = sha256();
+            for(int i = 0; i < BUCKETS; i++) {
+                sha256.update(digest(i));
+            }
+            root = sha256.digest();
+        }
+        return HexFormat.of().formatHex(root);
+    }
+
+    /**
+     * @return The digest of every bucket, in order
+     */
+    public synchronized List<String> bucketDigests() {
+        List<String> list = new ArrayList<>(BUCKETS);
+        for(int i = 0; i < BUCKETS; i++) {
+            list.add(HexFormat.of().formatHex(digest(i)));
+        }
+        return list;
+    }
+
+    /**
+     * @return A copy of the files in the bucket, mapped to their checksum
+     */
+    public synchronized Map<String, Long> bucket(int index) {
+        return new TreeMap<>(buckets.get(index));
+    }
+
+    public static int bucketOf(String fileName) {
+        CRC32 crc = new CRC32();
+        crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() & (BUCKETS - 1));
+    }
+
+    private byte[] digest(int bucket) {
+        if(digests[bucket] == null) {
+            MessageDigest sha256 = sha256();
+            ByteBuffer checksum = ByteBuffer.allocate(8);
+            for(Map.Entry<String, Long> entry : buckets.get(bucket).entrySet()) {
+                sha256.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                sha256.update((byte) 0);
+                checksum.clear();
+                checksum.putLong(entry.getValue());
+                sha256.update(checksum.array());
+            }
+            digests[bucket] = sha256.digest();
+        }
+        return digests[bucket];
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // every java implementation has to support it
+            throw new AssertionError(e);
+        }
+    }
+}
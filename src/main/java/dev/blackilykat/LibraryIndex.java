@@ -0,0 +1,407 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.LibraryActionMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps the checksum of every file in the library stored in {@link Storage#checksums} so that they don't need to be
+ * recalculated every time a client connects. Checksums are calculated with {@link Config#HASH_ALGORITHM}, and also
+ * kept in {@link Storage#secondaryChecksums} with {@link Config#SECONDARY_HASH_ALGORITHM} if set. The index gets
+ * updated whenever the server itself changes a file, and gets reconciled with what's actually on disk when the server
+ * starts, recording what changed while it was down. The {@link LibraryDigest} of each algorithm is kept in sync with
+ * it.
+ */
+public class LibraryIndex {
+    /**
+     * Direct buffers that aren't being read into right now. Only allocated when none is free and fewer than
+     * {@link Config#HASH_IO_PARALLELISM} exist, so threads that hash a single file (like upload threads) don't each
+     * get a buffer of their own.
+     */
+    private static final Queue<ByteBuffer> READ_BUFFERS = new ConcurrentLinkedQueue<>();
+    private static final Semaphore READ_BUFFER_PERMITS = new Semaphore(Config.HASH_IO_PARALLELISM, true);
+
+    /**
+     * Makes sure every file in the library has an up-to-date entry and removes the entries of files that don't exist
+     * anymore. Files are only hashed again if their size or last modified time changed since they were last indexed.
+     * <br />Files that got added, removed or replaced since the last time are recorded as library actions like
+     * {@link LibraryWatcher} does, since clients would have no other way to find out about them. That doesn't happen
+     * when the index is being built for the first time (or for a different {@link Config#HASH_ALGORITHM}), since then
+     * there's nothing to compare the library with.
+     */
+    public static void reconcile() throws IOException {
+        File[] files = Storage.LIBRARY.listFiles();
+        if(files == null) {
+            throw new IOException("Could not list files in " + Storage.LIBRARY.getAbsolutePath());
+        }
+        Set<String> existing = new HashSet<>();
+        List<File> outdated = new ArrayList<>();
+        for(File file : files) {
+            if(!file.isFile()) continue;
+            existing.add(file.getName());
+            // files from before the blob store existed need their sha256 hash as well
+            if(!isIndexed(Storage.checksums, file) || (Storage.secondaryChecksums != null && !isIndexed(Storage.secondaryChecksums, file))
+                    || (Config.BLOB_STORE && !BlobStore.contains(file.getName()))) {
+                outdated.add(file);
+            }
+        }
+        boolean recordChanges = Config.HASH_ALGORITHM.id.equals(Storage.getIndexedAlgorithm());
+        Map<String, Long> previousChecksums = new HashMap<>();
+        for(File file : outdated) {
+            Entry previous = Storage.checksums.get(file.getName());
+            if(previous != null) {
+                previousChecksums.put(file.getName(), previous.checksum);
+            }
+        }
+        new LibraryScanner(outdated).run();
+        // sorted so that the actions get recorded in the same order every time
+        Map<String, LibraryActionMessage.Type> changes = new TreeMap<>();
+        for(File file : outdated) {
+            Entry entry = Storage.checksums.get(file.getName());
+            // couldn't be hashed, the watcher will record it once it can be
+            if(entry == null || !entry.matches(file)) continue;
+            Long previous = previousChecksums.get(file.getName());
+            if(previous == null) {
+                changes.put(file.getName(), LibraryActionMessage.Type.ADD);
+            } else if(previous != entry.checksum) {
+                changes.put(file.getName(), LibraryActionMessage.Type.REPLACE);
+            }
+        }
+        int removed = 0;
+        for(String fileName : new HashSet<>(Storage.checksums.keySet())) {
+            if(!existing.contains(fileName)) {
+                Storage.checksums.remove(fileName);
+                if(Storage.secondaryChecksums != null) {
+                    Storage.secondaryChecksums.remove(fileName);
+                }
+                BlobStore.remove(fileName);
+                changes.put(fileName, LibraryActionMessage.Type.REMOVE);
+                removed++;
+            }
+        }
+        if(Config.BLOB_STORE) {
+            BlobStore.sweep();
+        }
+        for(HashAlgorithm algorithm : algorithms()) {
+            LibraryDigest.of(algorithm).rebuild();
+        }
+        if(recordChanges) {
+            Storage.actionLock.lock();
+            try {
+                for(Map.Entry<String, LibraryActionMessage.Type> change : changes.entrySet()) {
+                    LibraryWatcher.record(change.getValue(), change.getKey());
+                }
+            } finally {
+                Storage.actionLock.unlock();
+            }
+        }
+        Storage.setIndexedAlgorithm(Config.HASH_ALGORITHM.id);
+        System.out.printf("Library index reconciled: %d files, %d updated, %d removed, %d changes recorded\n",
+                existing.size(), outdated.size(), removed, recordChanges ? changes.size() : 0);
+    }
+
+    /**
+     * Hashes the file and stores its entry, replacing the previous one if present. Should be called every time the
+     * server finishes writing a file to the library. Also puts the file in the {@link BlobStore} if it's enabled.
+     */
+    public static void update(File file) throws IOException {
+        update(file, hash(file, Config.BLOB_STORE));
+    }
+
+    /**
+     * Same as {@link #update(File)} with hashes that were already calculated, for when the file had to be hashed
+     * before being put in the library. The file must have kept the size and last modified time it had when hashed.
+     * @param hashes Must include the sha256 hash if the {@link BlobStore} is enabled
+     */
+    public static void update(File file, Hashes hashes) throws IOException {
+        long size = hashes.size;
+        long lastModified = hashes.lastModified;
+        if(Config.BLOB_STORE && BlobStore.adopt(file, hashes.sha256)) {
+            // the file is now a link to a blob with the same content, which has its own last modified time
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+        Storage.checksums.put(file.getName(), new Entry(size, lastModified, hashes.checksum));
+        if(Storage.secondaryChecksums != null) {
+            Storage.secondaryChecksums.put(file.getName(), new Entry(size, lastModified, hashes.secondaryChecksum));
+        }
+        LibraryDigest.of(Config.HASH_ALGORITHM).put(file.getName(), hashes.checksum);
+        if(Storage.secondaryChecksums != null) {
+            LibraryDigest.of(Config.SECONDARY_HASH_ALGORITHM).put(file.getName(), hashes.secondaryChecksum);
+        }
+    }
+
+    /**
+     * Hashes a file with every algorithm files are indexed with, reading it only once
+     * @param sha256 Whether to also calculate the sha256 hash of the file
+     */
+    public static Hashes hash(File file, boolean sha256) throws IOException {
+        // read size and time first so that if the file changes while hashing it will just get hashed again next time
+        long size = file.length();
+        long lastModified = file.lastModified();
+        List<HashAlgorithm.Hasher> hashers = new ArrayList<>(3);
+        HashAlgorithm.Hasher primary = Config.HASH_ALGORITHM.newHasher();
+        hashers.add(primary);
+        HashAlgorithm.Hasher secondary = null;
+        if(Storage.secondaryChecksums != null) {
+            secondary = Config.SECONDARY_HASH_ALGORITHM.newHasher();
+            hashers.add(secondary);
+        }
+        HashAlgorithm.Sha256Hasher sha256Hasher = null;
+        if(sha256) {
+            // reuse the one of the index if there is one
+            for(HashAlgorithm.Hasher hasher : hashers) {
+                if(hasher instanceof HashAlgorithm.Sha256Hasher) sha256Hasher = (HashAlgorithm.Sha256Hasher) hasher;
+            }
+            if(sha256Hasher == null) {
+                sha256Hasher = new HashAlgorithm.Sha256Hasher();
+                hashers.add(sha256Hasher);
+            }
+        }
+        hash(file, hashers);
+        Hashes hashes = new Hashes(size, lastModified, primary.value(), secondary == null ? 0 : secondary.value());
+        if(sha256Hasher != null) {
+            hashes.sha256 = sha256Hasher.hex();
+        }
+        return hashes;
+    }
+
+    /**
+     * Takes the hashes of a file from the entries of another file with the same content, so that it doesn't need to be
+     * read. The sha256 hash isn't included.
+     * @param sameContent The name of a library file with the same content as the file
+     * @return The hashes, or null if the other file isn't in every index or changed since it was indexed
+     */
+    public static Hashes copyHashes(File file, String sameContent) {
+        Entry entry = Storage.checksums.get(sameContent);
+        if(entry == null || !entry.matches(new File(Storage.LIBRARY, sameContent)) || entry.size != file.length()) {
+            return null;
+        }
+        long secondaryChecksum = 0;
+        if(Storage.secondaryChecksums != null) {
+            Entry secondary = Storage.secondaryChecksums.get(sameContent);
+            if(secondary == null || secondary.lastModified != entry.lastModified) return null;
+            secondaryChecksum = secondary.checksum;
+        }
+        return new Hashes(file.length(), file.lastModified(), entry.checksum, secondaryChecksum);
+    }
+
+    /**
+     * Removes the entry of a file. Should be called every time the server deletes a file from the library.
+     */
+    public static void remove(String fileName) {
+        Storage.checksums.remove(fileName);
+        if(Storage.secondaryChecksums != null) {
+            Storage.secondaryChecksums.remove(fileName);
+        }
+        for(HashAlgorithm algorithm : algorithms()) {
+            LibraryDigest.of(algorithm).remove(fileName);
+        }
+        BlobStore.remove(fileName);
+    }
+
+    /**
+     * @return A copy of the index, mapping every file name to its checksum
+     */
+    public static Map<String, Long> snapshot() {
+        return snapshot(Config.HASH_ALGORITHM);
+    }
+
+    /**
+     * @param algorithm One of {@link #algorithms()}
+     * @return A copy of the index of the algorithm, mapping every file name to its checksum
+     */
+    public static Map<String, Long> snapshot(HashAlgorithm algorithm) {
+        Map<String, Entry> index = algorithm == Config.HASH_ALGORITHM ? Storage.checksums : Storage.secondaryChecksums;
+        Map<String, Long> hashes = new HashMap<>();
+        for(Map.Entry<String, Entry> entry : index.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().checksum);
+        }
+        return hashes;
+    }
+
+    /**
+     * @return The algorithms files are being indexed with, {@link Config#HASH_ALGORITHM} first
+     */
+    public static List<HashAlgorithm> algorithms() {
+        if(Storage.secondaryChecksums == null) return List.of(Config.HASH_ALGORITHM);
+        return List.of(Config.HASH_ALGORITHM, Config.SECONDARY_HASH_ALGORITHM);
+    }
+
+    /**
+     * @return The algorithm of the checksums sent to clients that didn't pick one. That's crc32 if it's being indexed,
+     * since clients from before there were other algorithms don't know to pick one.
+     */
+    public static HashAlgorithm defaultAlgorithm() {
+        if(algorithms().contains(HashAlgorithm.CRC32)) return HashAlgorithm.CRC32;
+        return Config.HASH_ALGORITHM;
+    }
+
+    /**
+     * @return The entry of the file, or null if the file isn't indexed or changed since it was
+     */
+    public static Entry entry(File file) {
+        Entry entry = Storage.checksums.get(file.getName());
+        if(entry == null || !entry.matches(file)) return null;
+        return entry;
+    }
+
+    /**
+     * @return A strong http entity tag for the file based on its checksum, or null if the file isn't indexed or changed
+     * since it was
+     */
+    public static String etag(File file) {
+        Entry entry = entry(file);
+        if(entry == null) return null;
+        return "\"" + Long.toHexString(entry.checksum) + "-" + Long.toHexString(entry.size) + "\"";
+    }
+
+    /**
+     * Calculates the checksum of a file with {@link Config#HASH_ALGORITHM}
+     */
+    public static long checksum(File file) throws IOException {
+        HashAlgorithm.Hasher hasher = Config.HASH_ALGORITHM.newHasher();
+        hash(file, List.of(hasher));
+        return hasher.value();
+    }
+
+    /**
+     * Feeds the content of a file to every hasher, reading it only once. Reads through one of a few direct buffers that
+     * get reused, so hashing many files doesn't allocate a new buffer for every one of them. Waits for one to be free if
+     * {@link Config#HASH_IO_PARALLELISM} files are already being hashed.
+     */
+    public static void hash(File file, List<HashAlgorithm.Hasher> hashers) throws IOException {
+        try {
+            READ_BUFFER_PERMITS.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to hash " + file.getName());
+        }
+        ByteBuffer buffer = READ_BUFFERS.poll();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(Config.HASH_BUFFER_SIZE);
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                for(HashAlgorithm.Hasher hasher : hashers) {
+                    buffer.rewind();
+                    hasher.update(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            READ_BUFFERS.offer(buffer);
+            READ_BUFFER_PERMITS.release();
+        }
+    }
+
+    private static boolean isIndexed(Map<String, Entry> index, File file) {
+        Entry entry = index.get(file.getName());
+        return entry != null && entry.matches(file);
+    }
+
+    /**
+     * What {@link #hash(File, boolean)} calculated for a file
+     */
+    public static class Hashes {
+        /**
+         * The size of the file in bytes when it was hashed
+         */
+        public final long size;
+        /**
+         * The last modified time of the file when it was hashed
+         */
+        public final long lastModified;
+        /**
+         * The checksum of the file with {@link Config#HASH_ALGORITHM}
+         */
+        public final long checksum;
+        /**
+         * The checksum of the file with {@link Config#SECONDARY_HASH_ALGORITHM}, 0 if there is none
+         */
+        public final long secondaryChecksum;
+        /**
+         * The sha256 hash of the file in the format used to name blobs, null if it wasn't calculated
+         */
+        public String sha256 = null;
+
+        public Hashes(long size, long lastModified, long checksum, long secondaryChecksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.secondaryChecksum = secondaryChecksum;
+        }
+    }
+
+    public static class Entry implements Serializable {
+        /**
+         * The UID the class had before it was set explicitly, so entries that are already stored stay readable
+         */
+        private static final long serialVersionUID = 3281686707054881748L;
+
+        /**
+         * The size of the file in bytes when it was hashed
+         */
+        public final long size;
+        /**
+         * The last modified time of the file when it was hashed
+         * @see File#lastModified()
+         */
+        public final long lastModified;
+        /**
+         * The checksum of the file, calculated with the algorithm of the index it's in
+         */
+        public final long checksum;
+
+        public Entry(long size, long lastModified, long checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return Whether the file still has the same size and last modified time it had when it was hashed
+         */
+        public boolean matches(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+}
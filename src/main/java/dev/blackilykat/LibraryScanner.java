@@ -0,0 +1,105 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes many library files at once, used when a lot of files need to be indexed (like on first boot or after a
+ * library restore). Files are spread across {@link Config#HASH_THREADS} threads, and at most
+ * {@link Config#HASH_IO_PARALLELISM} of them get read at the same time.
+ */
+public class LibraryScanner {
+    private final List<File> files;
+    private final Semaphore ioPermits = new Semaphore(Config.HASH_IO_PARALLELISM);
+    private final AtomicInteger done = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private long startTime;
+
+    public LibraryScanner(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * Indexes every file, blocking until all of them are done. Files that fail to be read are skipped, they will be
+     * retried the next time the library gets reconciled.
+     */
+    public void run() {
+        if(files.isEmpty()) return;
+        startTime = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(Config.HASH_THREADS, files.size()));
+        ScheduledExecutorService progressReporter = Executors.newSingleThreadScheduledExecutor();
+        progressReporter.scheduleAtFixedRate(this::reportProgress, 1, 1, TimeUnit.SECONDS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            for(File file : files) {
+                futures.add(workers.submit(() -> index(file)));
+            }
+            for(Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch(Exception e) {
+                    // index() catches everything it expects to happen
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            progressReporter.shutdownNow();
+        }
+        reportProgress();
+    }
+
+    private void index(File file) {
+        try {
+            ioPermits.acquire();
+            try {
+                LibraryIndex.update(file);
+            } finally {
+                ioPermits.release();
+            }
+        } catch(IOException e) {
+            System.err.println("Could not hash file " + file.getName() + ": " + e.getMessage());
+            failed.incrementAndGet();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        done.incrementAndGet();
+    }
+
+    private void reportProgress() {
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        int doneNow = done.get();
+        System.out.printf("Hashed %d/%d files (%d failed) in %.1fs, %.1f files/s\n",
+                doneNow, files.size(), failed.get(), seconds, doneNow / seconds);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.LibraryActionMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices files that get added, removed or modified in the library by something other than the server (like someone
+ * copying files in with rsync), updates the {@link LibraryIndex} and records the changes as library actions with
+ * client id -1, which get sent to every connected client.
+ * <br />A file is only looked at once nothing happened to it for {@link Config#WATCH_DEBOUNCE_MILLIS}, so files that
+ * are still being written don't get picked up halfway. Since the file system can drop events, every
+ * {@link Config#WATCH_RESCAN_INTERVAL_SECONDS} seconds (and whenever it does drop some) the whole library is compared
+ * against the index, which only hashes files whose size or last modified time changed.
+ * <br />Changes the server makes itself are already in the index by the time their events get looked at, so they
+ * don't get recorded twice.
+ */
+public class LibraryWatcher implements Runnable {
+    /**
+     * File names that something happened to, with when it last happened as in {@link System#nanoTime()}
+     */
+    private final Map<String, Long> changed = new ConcurrentHashMap<>();
+    private volatile boolean rescanRequested = false;
+    private final WatchService watchService;
+
+    private LibraryWatcher(WatchService watchService) {
+        this.watchService = watchService;
+    }
+
+    /**
+     * Starts watching the library, unless {@link Config#WATCH_LIBRARY} is false
+     */
+    public static void start() throws IOException {
+        if(!Config.WATCH_LIBRARY) return;
+        WatchService watchService = Storage.LIBRARY.toPath().getFileSystem().newWatchService();
+        Storage.LIBRARY.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        LibraryWatcher watcher = new LibraryWatcher(watchService);
+        Thread thread = new Thread(watcher, "Library watcher");
+        thread.setDaemon(true);
+        thread.start();
+        if(Config.WATCH_RESCAN_INTERVAL_SECONDS > 0) {
+            Main.scheduler.scheduleAtFixedRate(() -> watcher.rescanRequested = true, Config.WATCH_RESCAN_INTERVAL_SECONDS,
+                    Config.WATCH_RESCAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(true) {
+                WatchKey key = watchService.poll(Config.WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                if(key != null) {
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescanRequested = true;
+                            continue;
+                        }
+                        changed.put(((Path) event.context()).getFileName().toString(), System.nanoTime());
+                    }
+                    if(!key.reset()) {
+                        System.err.println("Library folder is not accessible anymore, stopped watching it");
+                        return;
+                    }
+                }
+                if(rescanRequested) {
+                    rescanRequested = false;
+                    rescan();
+                }
+                checkQuietFiles();
+            }
+        } catch(InterruptedException | ClosedWatchServiceException e) {
+            // stopping
+        }
+    }
+
+    /**
+     * Marks every file that differs from the index as changed
+     */
+    private void rescan() {
+        File[] files = Storage.LIBRARY.listFiles();
+        if(files == null) {
+            System.err.println("Could not list files in " + Storage.LIBRARY.getAbsolutePath());
+            return;
+        }
+        Set<String> existing = new HashSet<>();
+        // backdated so they get looked at right away
+        long time = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Config.WATCH_DEBOUNCE_MILLIS);
+        for(File file : files) {
+            if(!file.isFile()) continue;
+            existing.add(file.getName());
+            if(LibraryIndex.entry(file) == null) {
+                changed.putIfAbsent(file.getName(), time);
+            }
+        }
+        for(String fileName : Storage.checksums.keySet()) {
+            if(!existing.contains(fileName)) {
+                changed.putIfAbsent(fileName, time);
+            }
+        }
+    }
+
+    private void checkQuietFiles() {
+        long quietSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Config.WATCH_DEBOUNCE_MILLIS);
+        Iterator<Map.Entry<String, Long>> iterator = changed.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if(entry.getValue() - quietSince > 0) continue;
+            iterator.remove();
+            try {
+                if(!check(entry.getKey())) {
+                    // a client is changing the file right now or it's still being written, look at it again later
+                    changed.putIfAbsent(entry.getKey(), System.nanoTime());
+                }
+            } catch(IOException e) {
+                System.err.println("Could not check library file " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compares a file with its entry in the index and records what changed, if anything
+     * @return False if the file has a pending action or changed while being hashed, in which case it needs to be looked
+     * at again later
+     */
+    private static boolean check(String fileName) throws IOException {
+        File file = new File(Storage.LIBRARY, fileName);
+        // hashed before taking the lock so that a big file doesn't stop clients from doing anything while it's read
+        LibraryIndex.Hashes hashes = null;
+        if(file.isFile() && LibraryIndex.entry(file) == null) {
+            if(hasPendingAction(fileName)) return false;
+            hashes = LibraryIndex.hash(file, Config.BLOB_STORE);
+        }
+        // the same lock client actions are handled with, so they can't change the file while it's being looked at
+        Storage.actionLock.lock();
+        try {
+            if(hasPendingAction(fileName)) return false;
+            LibraryIndex.Entry previous = Storage.checksums.get(fileName);
+            LibraryActionMessage.Type type;
+            if(!file.isFile()) {
+                if(previous == null) return true;
+                LibraryIndex.remove(fileName);
+                type = LibraryActionMessage.Type.REMOVE;
+            } else {
+                if(LibraryIndex.entry(file) != null) return true;
+                if(hashes == null || file.length() != hashes.size || file.lastModified() != hashes.lastModified) {
+                    // showed up or changed again while being hashed
+                    return false;
+                }
+                LibraryIndex.update(file, hashes);
+                if(previous == null) {
+                    type = LibraryActionMessage.Type.ADD;
+                } else if(previous.checksum != Storage.checksums.get(fileName).checksum) {
+                    type = LibraryActionMessage.Type.REPLACE;
+                } else {
+                    // only touched, the index is up to date again and there's nothing to tell clients
+                    return true;
+                }
+            }
+            record(type, fileName);
+            return true;
+        } finally {
+            Storage.actionLock.unlock();
+        }
+    }
+
+    private static boolean hasPendingAction(String fileName) {
+        LibraryActionMessage.PendingAction pendingAction = LibraryActionMessage.pendingActions.get(fileName);
+        return pendingAction != null && !pendingAction.isCancelled() && !pendingAction.finished;
+    }
+
+    /**
+     * Stores the action and sends it to every client. Must be called while holding {@link Storage#actionLock}.
+     */
+    static void record(LibraryActionMessage.Type type, String fileName) {
+        int actionId = Storage.getCurrentActionID();
+        if(actionId == -1) actionId = 0;
+        LibraryActionMessage.Action action = new LibraryActionMessage.Action(actionId, -1, fileName, type);
+        Storage.actions.put(actionId, action);
+        Storage.setCurrentActionID(actionId + 1);
+        System.out.printf("Recorded action %d: %s %s, changed outside of the server\n", actionId, type, fileName);
+        LibraryActionMessage message = action.toMessage();
+        if(type != LibraryActionMessage.Type.REMOVE) {
+            message.hash = BlobStore.hashOf(fileName);
+        }
+        Client.broadcast(message);
+    }
+}
@@ -21,40 +21,146 @@
 package dev.blackilykat;
 
 import com.sun.net.httpserver.HttpServer;
+import dev.blackilykat.messages.LibraryActionMessage;
 import dev.blackilykat.messages.LibraryHashesMessage;
 import dev.blackilykat.messages.TestMessage;
+import dev.blackilykat.messages.TransportOptionsMessage;
 import dev.blackilykat.messages.WelcomeMessage;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
-    public static ArrayList<Client> clients = new ArrayList<>();
+    public static Set<Client> clients = ConcurrentHashMap.newKeySet();
     public static int clientIdCounter = 0;
+    /**
+     * Runs periodic maintenance tasks
+     */
+    public static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Runs the handshake of new connections so that a slow one doesn't stop other clients from being accepted
+     */
+    public static ExecutorService handshakeExecutor = Config.VIRTUAL_CLIENT_THREADS
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool();
+    /**
+     * Handles the messages received by {@link NioClient}s, so that the event loops never wait on anything a message
+     * does
+     */
+    public static ExecutorService messageExecutor = Config.VIRTUAL_CLIENT_THREADS
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool();
 
     public static void main(String[] args) throws IOException {
         System.out.println("Initializing database...");
         Storage.init();
         System.out.println("Initialized database");
+        System.out.println("Indexing library...");
+        LibraryIndex.reconcile();
+        System.out.println("Indexed library");
+        LibraryWatcher.start();
+        ActionLogCompactor.start();
+        Metrics.start();
+        scheduler.scheduleAtFixedRate(LibraryActionMessage::sweepPendingActions, 1, 1, TimeUnit.SECONDS);
         System.out.println("Starting file transfer server...");
         HttpServer fileTransferHttpServer = HttpServer.create(new InetSocketAddress(5001), 0);
         fileTransferHttpServer.createContext("/", new FileTransferHttpHandler());
+        fileTransferHttpServer.setExecutor(FileTransferHttpHandler.createExecutor());
         fileTransferHttpServer.start();
         System.out.println("Started file transfer server");
+        if(Config.DOWNLOAD_PORT > 0) {
+            System.out.println("Starting download server...");
+            new ZeroCopyDownloadServer(Config.DOWNLOAD_PORT).start();
+            System.out.println("Started download server");
+        }
 
         System.out.println("Starting main server");
+        if(Config.TRANSPORT.equals("nio")) {
+            new NioMessageServer(5000).run();
+            return;
+        }
         ServerSocket serverSocket = new ServerSocket(5000);
 
         while(true) {
-            Client client = new Client(serverSocket.accept(), clientIdCounter++);
-            client.start();
-            client.send(new WelcomeMessage(client.clientId, Storage.getCurrentActionID()));
-            System.out.println("Connected to client " + client);
-            System.out.println("All connected clients: " + clients.toString());
-            Client.broadcast(new TestMessage(client.clientId));
-            client.send(LibraryHashesMessage.create());
+            Socket socket = serverSocket.accept();
+            long acceptTime = System.nanoTime();
+            int clientId = clientIdCounter++;
+            handshakeExecutor.submit(() -> acceptBlocking(socket, clientId, acceptTime));
         }
     }
+
+    private static void acceptBlocking(Socket socket, int clientId, long acceptTime) {
+        Client client;
+        try {
+            client = new Client(socket, clientId);
+        } catch(IOException e) {
+            System.err.println("Could not set up connection with " + socket.getInetAddress() + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch(IOException ignored) {}
+            return;
+        }
+        client.acceptTime = acceptTime;
+        handshake(client);
+    }
+
+    /**
+     * Starts the client and sends it everything it needs to know right after connecting
+     */
+    public static void handshake(Client client) {
+        WelcomeMessage welcomeMessage = new WelcomeMessage(client.clientId, Storage.getCurrentActionID());
+        welcomeMessage.downloadPort = Config.DOWNLOAD_PORT;
+        // the client didn't pick an algorithm yet
+        welcomeMessage.libraryDigest = LibraryDigest.of(LibraryIndex.defaultAlgorithm()).root();
+        welcomeMessage.digestAlgorithm = LibraryIndex.defaultAlgorithm().id;
+        if(Config.COMPRESSION) {
+            welcomeMessage.compression.add(TransportOptionsMessage.DEFLATE);
+        }
+        if(Config.BINARY_FORMAT) {
+            welcomeMessage.formats.add(TransportOptionsMessage.JSON);
+            welcomeMessage.formats.add(TransportOptionsMessage.BINARY);
+        }
+        for(HashAlgorithm algorithm : LibraryIndex.algorithms()) {
+            welcomeMessage.hashAlgorithms.add(algorithm.id);
+        }
+        client.send(welcomeMessage);
+        // only added now so that broadcasts can't get queued before the welcome
+        clients.add(client);
+        // only start reading once the welcome is queued, so nothing the client sends can get a reply before it
+        client.start();
+        System.out.println("Connected to client " + client);
+        System.out.println("All connected clients: " + clients.toString());
+        Client.broadcast(new TestMessage(client.clientId));
+        if(!welcomeMessage.hasTransportOptions()) {
+            finishHandshake(client);
+        } else {
+            // give the client a chance to pick its transport options before the hashes get sent. Clients that don't
+            // pick any get them as soon as they send something else. Building them can take a while, so it doesn't
+            // happen on the scheduler.
+            scheduler.schedule(() -> handshakeExecutor.execute(() -> finishHandshake(client)),
+                    Config.TRANSPORT_NEGOTIATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the rest of the handshake, once the client picked its transport options, sent something else instead, or
+     * the time to do so ran out. Only does anything the first time it's called for each client.
+     */
+    public static void finishHandshake(Client client) {
+        if(!client.handshakeFinished.compareAndSet(false, true)) return;
+        if(!client.connected || !Config.SEND_HASHES_ON_CONNECT) return;
+        client.send(LibraryHashesMessage.create(client.hashAlgorithm != null ? client.hashAlgorithm : LibraryIndex.defaultAlgorithm()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters about what the server is doing. They get printed every {@link Config#METRICS_INTERVAL_SECONDS} seconds.
+ */
+public class Metrics {
+    /**
+     * Time between a connection being accepted and the {@link dev.blackilykat.messages.WelcomeMessage} being written
+     * to it
+     */
+    public static final Latency acceptToWelcome = new Latency();
+    /**
+     * File transfers currently being handled by the file transfer server
+     */
+    public static final AtomicInteger activeTransfers = new AtomicInteger(0);
+    /**
+     * Bytes of library files sent to clients
+     */
+    public static final Throughput bytesSent = new Throughput();
+    /**
+     * Bytes of library files received from clients
+     */
+    public static final Throughput bytesReceived = new Throughput();
+
+    /**
+     * Starts printing the metrics periodically, unless {@link Config#METRICS_INTERVAL_SECONDS} is 0 or less
+     */
+    public static void start() {
+        if(Config.METRICS_INTERVAL_SECONDS <= 0) return;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> System.out.println(dump()), Config.METRICS_INTERVAL_SECONDS,
+                Config.METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static String dump() {
+        Runtime runtime = Runtime.getRuntime();
+        int queuedMessages = 0;
+        int maxQueueDepth = 0;
+        StringBuilder queueDepths = new StringBuilder();
+        for(Client client : Main.clients) {
+            int depth = client.messageQueue.size();
+            queuedMessages += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            if(depth > 0) {
+                queueDepths.append("\n    - ").append(client).append(": ").append(depth);
+            }
+        }
+        return "Metrics:\n"
+                + "  - connected clients : " + Main.clients.size() + "\n"
+                + "  - platform threads  : " + ManagementFactory.getThreadMXBean().getThreadCount() + "\n"
+                + "  - heap used         : " + (runtime.totalMemory() - runtime.freeMemory()) / 1048576 + "MB\n"
+                + "  - accept to welcome : " + acceptToWelcome + "\n"
+                + "  - queued messages   : " + queuedMessages + " (max " + maxQueueDepth + " per client)"
+                + queueDepths + "\n"
+                + "  - active transfers  : " + activeTransfers.get() + "\n"
+                + "  - bytes sent        : " + bytesSent.sample() + "\n"
+                + "  - bytes received    : " + bytesReceived.sample();
+    }
+
+    /**
+     * Keeps track of how long something takes
+     */
+    public static class Latency {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        @Override
+        public String toString() {
+            long count = this.count.sum();
+            double averageMillis = count == 0 ? 0 : totalNanos.sum() / 1_000_000.0 / count;
+            return String.format("%d samples, avg %.2fms, max %.2fms", count, averageMillis, maxNanos.get() / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Counts bytes and how fast they're being counted
+     */
+    public static class Throughput {
+        private final LongAdder total = new LongAdder();
+        private long lastTotal = 0;
+        private long lastTime = System.nanoTime();
+
+        public void add(long bytes) {
+            total.add(bytes);
+        }
+
+        /**
+         * Describes the total and the rate since the last sample, and starts a new sample
+         */
+        public synchronized String sample() {
+            long total = this.total.sum();
+            long now = System.nanoTime();
+            double seconds = (now - lastTime) / 1_000_000_000.0;
+            double rate = seconds > 0 ? (total - lastTotal) / seconds / 1048576 : 0;
+            lastTotal = total;
+            lastTime = now;
+            return String.format("%d total, %.2fMB/s", total, rate);
+        }
+
+        @Override
+        public String toString() {
+            return total.sum() + " total";
+        }
+    }
+}
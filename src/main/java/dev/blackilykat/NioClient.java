@@ -0,0 +1,237 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A client connected through {@link NioMessageServer}. Instead of having its own threads, it gets read from and
+ * written to by one of the server's event loops whenever its channel is ready. Messages still go through
+ * {@link #messageQueue} so they're sent in the same order as with blocking clients.
+ */
+public class NioClient extends Client {
+    public final SocketChannel channel;
+    private final NioMessageServer.EventLoop eventLoop;
+    SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(Config.READ_BUFFER_SIZE);
+    /**
+     * Encoded messages that haven't been fully written yet
+     */
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    /**
+     * The messages in each buffer of {@link #pendingWrites}, in the same order. Without compression each buffer has
+     * one message, with it each buffer is a whole compressed batch.
+     */
+    private final ArrayDeque<Message[]> pendingMessages = new ArrayDeque<>();
+    /**
+     * Where compressed batches get deflated into, null until compression is turned on
+     */
+    private ByteArrayOutputStream compressedBatch = null;
+    private byte[] deflateChunk = null;
+    /**
+     * Set while what was read last is being handled, the channel isn't read from in the meantime. Only used by the
+     * event loop.
+     */
+    private boolean readPaused = false;
+    /**
+     * Set once the deflater and inflater were ended after the client disconnected. Only used by the event loop.
+     */
+    private boolean released = false;
+
+    public NioClient(SocketChannel channel, int clientId, NioMessageServer.EventLoop eventLoop) {
+        super(channel.socket(), clientId, null, null);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void start() {
+        eventLoop.register(this);
+    }
+
+    @Override
+    public void send(Message message) {
+        super.send(message);
+        eventLoop.requestWrite(this);
+    }
+
+    @Override
+    public void disconnect() {
+        super.disconnect();
+        eventLoop.requestRelease(this);
+    }
+
+    @Override
+    protected boolean canBlock() {
+        // blocking an event loop would stop it from draining the queues of all its clients
+        return !NioMessageServer.isEventLoopThread();
+    }
+
+    /**
+     * Called by the event loop when the channel has data to read. Must not be called from other threads.
+     * <br />Handling messages can block (deleting files, waiting for {@link Storage#actionLock}...), so what's read
+     * gets decoded and handled on {@link Main#messageExecutor} instead. The channel isn't read from again until that's
+     * done, which keeps the client's messages in order and stops a client from sending faster than it gets handled.
+     */
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if(read == -1) {
+            disconnect();
+            return;
+        }
+        if(read == 0) return;
+        byte[] received = Arrays.copyOf(readBuffer.array(), readBuffer.position());
+        readBuffer.clear();
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        Main.messageExecutor.execute(() -> handleReceived(received));
+    }
+
+    private void handleReceived(byte[] received) {
+        try {
+            frameDecoder.decode(ByteBuffer.wrap(received));
+        } catch(RuntimeException e) {
+            System.err.println("Unexpected error handling a message from client " + this + ", disconnecting it");
+            e.printStackTrace();
+            disconnect();
+            return;
+        }
+        eventLoop.requestRead(this);
+    }
+
+    /**
+     * Called by the event loop once what was read last got handled
+     */
+    void resumeReading() {
+        readPaused = false;
+        if(released) {
+            frameDecoder.close();
+            return;
+        }
+        if(!key.isValid()) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Called by the event loop after the client disconnected, frees the native memory of the deflater and inflater
+     * instead of waiting for them to be garbage collected. If what was read last is still being decoded, the inflater
+     * gets ended once that's done (see {@link #resumeReading()}).
+     */
+    void release() {
+        released = true;
+        if(deflater != null) {
+            deflater.end();
+        }
+        if(!readPaused) {
+            frameDecoder.close();
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel can be written to. Writes queued messages in batches of up to
+     * {@link Config#WRITE_BATCH_SIZE} for as long as the socket accepts them, and stops listening for writability once
+     * there's nothing left. Must not be called from other threads.
+     */
+    void onWritable() throws IOException {
+        while(true) {
+            if(deflater != null) {
+                fillCompressedBatch();
+            } else {
+                fillBatch();
+            }
+            if(pendingWrites.isEmpty()) {
+                int readInterest = readPaused ? 0 : SelectionKey.OP_READ;
+                key.interestOps(readInterest);
+                // something may have been queued right before interest got removed
+                if(!messageQueue.isEmpty()) {
+                    key.interestOps(readInterest | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            // one gathering write for the whole batch
+            channel.write(pendingWrites.toArray(new ByteBuffer[0]));
+            while(!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) {
+                pendingWrites.poll();
+                for(Message message : pendingMessages.poll()) {
+                    afterSent(message);
+                }
+            }
+            if(!pendingWrites.isEmpty()) {
+                // socket buffer is full, wait to be writable again
+                return;
+            }
+        }
+    }
+
+    private void fillBatch() {
+        while(pendingWrites.size() < Config.WRITE_BATCH_SIZE) {
+            Message message = messageQueue.poll();
+            if(message == null) break;
+            pendingWrites.add(ByteBuffer.wrap(encode(message)));
+            pendingMessages.add(new Message[]{message});
+            // if it turned on compression, the next ones go in a compressed batch
+            if(deflater != null) break;
+        }
+    }
+
+    /**
+     * Deflates up to {@link Config#WRITE_BATCH_SIZE} queued messages into a single buffer ending with a sync flush.
+     * Only done once the previous batch is fully written, so that batches are as big as they can be.
+     */
+    private void fillCompressedBatch() {
+        if(!pendingWrites.isEmpty()) return;
+        if(compressedBatch == null) {
+            compressedBatch = new ByteArrayOutputStream();
+            deflateChunk = new byte[8192];
+        }
+        List<Message> messages = new ArrayList<>();
+        while(messages.size() < Config.WRITE_BATCH_SIZE) {
+            Message message = messageQueue.poll();
+            if(message == null) break;
+            deflater.setInput(encode(message));
+            while(!deflater.needsInput()) {
+                int written = deflater.deflate(deflateChunk, 0, deflateChunk.length, Deflater.NO_FLUSH);
+                compressedBatch.write(deflateChunk, 0, written);
+            }
+            messages.add(message);
+        }
+        if(messages.isEmpty()) return;
+        int written;
+        do {
+            written = deflater.deflate(deflateChunk, 0, deflateChunk.length, Deflater.SYNC_FLUSH);
+            compressedBatch.write(deflateChunk, 0, written);
+        } while(written == deflateChunk.length);
+        pendingWrites.add(ByteBuffer.wrap(compressedBatch.toByteArray()));
+        pendingMessages.add(messages.toArray(new Message[0]));
+        compressedBatch.reset();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking alternative to the thread-per-client message server, enabled with {@code -Dpmp.transport=nio}. Uses the
+ * same newline-delimited json protocol, but all connections are shared between {@link Config#NIO_EVENT_LOOPS}
+ * threads, each with its own {@link Selector}, so mostly idle connections cost close to nothing.
+ */
+public class NioMessageServer {
+    private static final ThreadLocal<Boolean> IS_EVENT_LOOP = ThreadLocal.withInitial(() -> false);
+    private final int port;
+    private final EventLoop[] eventLoops = new EventLoop[Config.NIO_EVENT_LOOPS];
+
+    public NioMessageServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Starts the event loops and accepts connections forever.
+     */
+    public void run() throws IOException {
+        for(int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            Thread thread = new Thread(eventLoops[i], "EventLoop" + i);
+            thread.start();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        int next = 0;
+        while(true) {
+            SocketChannel channel = serverChannel.accept();
+            long acceptTime = System.nanoTime();
+            channel.configureBlocking(false);
+            EventLoop eventLoop = eventLoops[next];
+            next = (next + 1) % eventLoops.length;
+            int clientId = Main.clientIdCounter++;
+            Main.handshakeExecutor.submit(() -> {
+                NioClient client = new NioClient(channel, clientId, eventLoop);
+                client.acceptTime = acceptTime;
+                Main.handshake(client);
+            });
+        }
+    }
+
+    /**
+     * @return Whether the current thread is running an event loop
+     */
+    public static boolean isEventLoopThread() {
+        return IS_EVENT_LOOP.get();
+    }
+
+    public static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioClient> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClient> writeRequests = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClient> readRequests = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClient> releaseRequests = new ConcurrentLinkedQueue<>();
+
+        public EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Starts handling the client in this event loop. Can be called from any thread.
+         */
+        public void register(NioClient client) {
+            registrations.add(client);
+            selector.wakeup();
+        }
+
+        /**
+         * Makes the event loop start writing the client's queued messages. Can be called from any thread.
+         */
+        public void requestWrite(NioClient client) {
+            writeRequests.add(client);
+            selector.wakeup();
+        }
+
+        /**
+         * Makes the event loop start reading from the client again once what it read last got handled. Can be called
+         * from any thread.
+         */
+        public void requestRead(NioClient client) {
+            readRequests.add(client);
+            selector.wakeup();
+        }
+
+        /**
+         * Makes the event loop free what the client used once it disconnected. Can be called from any thread.
+         */
+        public void requestRelease(NioClient client) {
+            releaseRequests.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            IS_EVENT_LOOP.set(true);
+            while(true) {
+                try {
+                    selector.select();
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                NioClient client;
+                while((client = registrations.poll()) != null) {
+                    try {
+                        int ops = SelectionKey.OP_READ;
+                        // messages may have been queued before the client was registered
+                        if(!client.messageQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+                        client.key = client.channel.register(selector, ops, client);
+                    } catch(ClosedChannelException e) {
+                        client.disconnect();
+                    }
+                }
+                while((client = writeRequests.poll()) != null) {
+                    if(client.key == null || !client.key.isValid()) continue;
+                    client.key.interestOps(client.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                while((client = readRequests.poll()) != null) {
+                    if(client.key == null) continue;
+                    client.resumeReading();
+                }
+                while((client = releaseRequests.poll()) != null) {
+                    client.release();
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    client = (NioClient) key.attachment();
+                    try {
+                        if(key.isReadable()) client.onReadable();
+                        if(key.isValid() && key.isWritable()) client.onWritable();
+                    } catch(IOException | CancelledKeyException e) {
+                        client.disconnect();
+                    } catch(RuntimeException e) {
+                        // only this client is in a broken state, the others on this loop must keep going
+                        System.err.println("Unexpected error with client " + client + ", disconnecting it");
+                        e.printStackTrace();
+                        client.disconnect();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,26 +21,124 @@
 package dev.blackilykat;
 
 import dev.blackilykat.messages.LibraryActionMessage;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Storage {
     public static final File LIBRARY = new File("library/");
+    /**
+     * Where files being uploaded are kept until they're complete
+     */
+    public static final File UPLOADS = new File("uploads/");
+    /**
+     * @see BlobStore
+     */
+    public static final File BLOBS = new File("blobs/");
+    /**
+     * Stored with {@link ActionDataType}
+     */
     // using the message's class cause it has all the needed info
-    public static Map<Integer, LibraryActionMessage.Action> actions;
+    public static MVMap<Integer, LibraryActionMessage.Action> actions;
+    /**
+     * The files in the library at the compaction horizon, with the id of the last action about each of them
+     * @see ActionLogCompactor
+     */
+    public static MVMap<String, Integer> snapshot;
     public static Map<String, Object> general;
+    /**
+     * The index of {@link Config#HASH_ALGORITHM}
+     * @see LibraryIndex
+     */
+    public static Map<String, LibraryIndex.Entry> checksums;
+    /**
+     * The index of {@link Config#SECONDARY_HASH_ALGORITHM}, null if there is none
+     * @see LibraryIndex
+     */
+    public static Map<String, LibraryIndex.Entry> secondaryChecksums = null;
+    /**
+     * The sha256 hash of the blob each library file is using
+     * @see BlobStore
+     */
+    public static MVMap<String, String> blobs;
+    /**
+     * Must be held while reading and then changing the current action id, so that no two actions get the same id
+     */
+    public static final ReentrantLock actionLock = new ReentrantLock();
 
     public static void init() {
+        // pending actions don't survive restarts, so neither do their uploads
+        UPLOADS.mkdirs();
+        File[] leftovers = UPLOADS.listFiles();
+        if(leftovers != null) {
+            for(File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        BLOBS.mkdirs();
         MVStore mvStore = MVStore.open("db");
-        actions = mvStore.openMap("actions");
+        actions = mvStore.openMap("library_actions",
+                new MVMap.Builder<Integer, LibraryActionMessage.Action>().valueType(ActionDataType.INSTANCE));
+        migrateActions(mvStore);
         general = mvStore.openMap("general");
+        snapshot = mvStore.openMap("snapshot");
+        checksums = mvStore.openMap(checksumsMapName(Config.HASH_ALGORITHM));
+        if(Config.SECONDARY_HASH_ALGORITHM != null && Config.SECONDARY_HASH_ALGORITHM != Config.HASH_ALGORITHM) {
+            secondaryChecksums = mvStore.openMap(checksumsMapName(Config.SECONDARY_HASH_ALGORITHM));
+        }
+        blobs = mvStore.openMap("blobs");
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             mvStore.close();
         }));
     }
 
+    /**
+     * Moves the actions from the map they were stored in with java serialization to {@link #actions}. Copying again
+     * after being interrupted just overwrites what was already copied, so the old map only gets removed once the copy
+     * is committed.
+     */
+    private static void migrateActions(MVStore mvStore) {
+        if(!mvStore.hasMap("actions")) return;
+        MVMap<Integer, LibraryActionMessage.Action> oldActions = mvStore.openMap("actions");
+        System.out.println("Migrating " + oldActions.size() + " library actions to the compact format...");
+        actions.putAll(oldActions);
+        mvStore.commit();
+        mvStore.removeMap(oldActions);
+        mvStore.commit();
+        System.out.println("Migrated library actions");
+    }
+
+    /**
+     * Each algorithm has its own index so switching between them doesn't need everything to be hashed again
+     */
+    private static String checksumsMapName(HashAlgorithm algorithm) {
+        // crc32 was the only algorithm before there were more
+        if(algorithm == HashAlgorithm.CRC32) return "checksums";
+        return "checksums_" + algorithm.id;
+    }
+
+    /**
+     * @return Whether the name is a plain file name that points right inside {@link #LIBRARY}. Names coming from
+     * clients must be checked with this before they're used to touch the file system, or something like "../db" could
+     * overwrite anything the server can write to.
+     */
+    public static boolean isValidFileName(String fileName) {
+        if(fileName == null || fileName.isEmpty() || fileName.equals(".") || fileName.contains("..")
+                || fileName.indexOf('/') != -1 || fileName.indexOf('\\') != -1 || fileName.indexOf('\0') != -1) {
+            return false;
+        }
+        try {
+            File library = LIBRARY.getCanonicalFile();
+            return library.equals(new File(library, fileName).getCanonicalFile().getParentFile());
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
     public static int getCurrentActionID() {
         /*
         default is -1 for clients who need to know when they should just get the entire library without caring about
@@ -53,4 +151,28 @@ public class Storage {
     public static void setCurrentActionID(int newValue) {
         general.put("currentActionID", newValue);
     }
+
+    /**
+     * @return The id of the oldest action still in {@link #actions}, everything before it is in {@link #snapshot}
+     * @see ActionLogCompactor
+     */
+    public static int getCompactionHorizon() {
+        return (Integer) general.getOrDefault("compactionHorizon", 0);
+    }
+
+    public static void setCompactionHorizon(int newValue) {
+        general.put("compactionHorizon", newValue);
+    }
+
+    /**
+     * @return The id of the {@link HashAlgorithm} {@link #checksums} was last reconciled with, null if it never was
+     * @see LibraryIndex#reconcile()
+     */
+    public static String getIndexedAlgorithm() {
+        return (String) general.get("indexedAlgorithm");
+    }
+
+    public static void setIndexedAlgorithm(String newValue) {
+        general.put("indexedAlgorithm", newValue);
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A minimal http server that only serves library downloads, so it can write files to the socket with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} (sendfile on most systems) instead
+ * of copying them through the heap like {@link com.sun.net.httpserver.HttpServer} has to. Runs on
+ * {@link Config#DOWNLOAD_PORT}, which clients get told about in the {@link dev.blackilykat.messages.WelcomeMessage}.
+ * Uploads still go through {@link FileTransferHttpHandler}. Supports the same ranges and conditional requests as it,
+ * see {@link DownloadResponse}.
+ */
+public class ZeroCopyDownloadServer {
+    /**
+     * Maximum size in bytes of the request line and headers of a request
+     */
+    private static final int MAX_HEAD_SIZE = 8192;
+    private final int port;
+    private final ExecutorService executor = FileTransferHttpHandler.createExecutor();
+
+    public ZeroCopyDownloadServer(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Thread thread = new Thread(() -> {
+            while(true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    executor.submit(() -> serve(channel));
+                } catch(IOException e) {
+                    System.err.println("Could not accept download connection: " + e.getMessage());
+                }
+            }
+        }, "DownloadServer");
+        thread.start();
+    }
+
+    /**
+     * Handles requests on a connection until the client closes it or asks not to keep it alive
+     */
+    private void serve(SocketChannel channel) {
+        try(channel) {
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_HEAD_SIZE);
+            while(true) {
+                Request request = readRequest(channel, buffer);
+                if(request == null) return;
+                boolean keepAlive = request.keepAlive();
+                if(!FileTransferHttpHandler.startTransfer(address)) {
+                    Map<String, String> headers = new LinkedHashMap<>();
+                    headers.put("Retry-After", "1");
+                    writeHead(channel, 429, "Too Many Requests", headers, 0, keepAlive);
+                } else {
+                    try {
+                        keepAlive = respond(channel, request) && keepAlive;
+                    } finally {
+                        FileTransferHttpHandler.endTransfer(address);
+                    }
+                }
+                if(!keepAlive) return;
+            }
+        } catch(IOException ignored) {
+            // client went away
+        }
+    }
+
+    /**
+     * Reads the next request's head. Bytes after the head are kept in the buffer for the next request.
+     * @return The request, or null if the connection should be closed, which includes the head not being received
+     * within {@link Config#DOWNLOAD_IDLE_TIMEOUT_SECONDS}
+     */
+    private Request readRequest(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        // a deadline for the whole head, a timeout on each read alone would let clients send a byte at a time forever
+        long deadline = System.nanoTime() + Config.DOWNLOAD_IDLE_TIMEOUT_SECONDS * 1_000_000_000L;
+        // reads on the channel itself can't time out, the ones on its socket's stream can
+        InputStream inputStream = channel.socket().getInputStream();
+        int headEnd;
+        while((headEnd = findHeadEnd(buffer)) < 0) {
+            if(!buffer.hasRemaining()) {
+                writeHead(channel, 431, "Request Header Fields Too Large", new LinkedHashMap<>(), 0, false);
+                return null;
+            }
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+            if(remainingMillis <= 0) return null;
+            channel.socket().setSoTimeout((int) Math.min(remainingMillis, Integer.MAX_VALUE));
+            int read;
+            try {
+                read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } catch(SocketTimeoutException e) {
+                return null;
+            }
+            if(read == -1) return null;
+            buffer.position(buffer.position() + read);
+        }
+        String head = new String(buffer.array(), 0, headEnd, StandardCharsets.ISO_8859_1);
+        // keep whatever comes after the head
+        buffer.flip();
+        buffer.position(headEnd + 4);
+        buffer.compact();
+
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if(requestLine.length != 3) {
+            writeHead(channel, 400, "Bad Request", new LinkedHashMap<>(), 0, false);
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for(int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if(colon <= 0) continue;
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        if(headers.containsKey("content-length") && !headers.get("content-length").equals("0")) {
+            // downloads don't have a body, and skipping it isn't worth it
+            writeHead(channel, 400, "Bad Request", new LinkedHashMap<>(), 0, false);
+            return null;
+        }
+        return new Request(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    /**
+     * @return The index of the "\r\n\r\n" ending the request head in the buffer, or -1 if it's not complete yet
+     */
+    private static int findHeadEnd(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        for(int i = 0; i + 3 < buffer.position(); i++) {
+            if(array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether the connection can still be used for other requests
+     */
+    private boolean respond(SocketChannel channel, Request request) throws IOException {
+        boolean head = request.method.equals("HEAD");
+        if(!request.method.equals("GET") && !head) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Allow", "GET, HEAD");
+            writeHead(channel, 405, "Method Not Allowed", headers, 0, request.keepAlive());
+            return true;
+        }
+        String filename;
+        try {
+            filename = new URI(request.target).getPath().replace("..", "");
+        } catch(URISyntaxException e) {
+            writeHead(channel, 400, "Bad Request", new LinkedHashMap<>(), 0, false);
+            return false;
+        }
+        File file = new File(Storage.LIBRARY.getAbsolutePath(), filename);
+        if(!file.isFile()) {
+            writeHead(channel, 404, "Not Found", new LinkedHashMap<>(), 0, request.keepAlive());
+            return true;
+        }
+        try(FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DownloadResponse response = DownloadResponse.create(file, fileChannel.size(), request.headers::get);
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", "application/octet-stream");
+            headers.putAll(response.headers);
+            if(response.status == 304) {
+                writeHead(channel, response.status, reason(response.status), headers, -1, request.keepAlive());
+                return true;
+            }
+            writeHead(channel, response.status, reason(response.status), headers, response.length, request.keepAlive());
+            if(head) return true;
+            return transfer(fileChannel, channel, response.start, response.length);
+        }
+    }
+
+    /**
+     * Sends part of a file straight from the file channel to the socket
+     * @return Whether the whole part was sent. If it wasn't (because the file got shorter in the meantime) the
+     * connection must be closed since the client is still expecting the rest.
+     */
+    private static boolean transfer(FileChannel fileChannel, SocketChannel channel, long start, long length) throws IOException {
+        long position = start;
+        long end = start + length;
+        while(position < end) {
+            long sent = fileChannel.transferTo(position, end - position, channel);
+            if(sent <= 0) return false;
+            position += sent;
+            Metrics.bytesSent.add(sent);
+        }
+        return true;
+    }
+
+    private static String reason(int status) {
+        return switch(status) {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 416 -> "Range Not Satisfiable";
+            default -> "Unknown";
+        };
+    }
+
+    /**
+     * @param contentLength The Content-Length header, or -1 to not send one
+     */
+    private static void writeHead(SocketChannel channel, int status, String reason, Map<String, String> headers,
+                                  long contentLength, boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if(contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if(!keepAlive) head.append("Connection: close\r\n");
+        head.append("\r\n");
+        ByteBuffer buffer = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private record Request(String method, String target, String version, Map<String, String> headers) {
+        boolean keepAlive() {
+            return version.equals("HTTP/1.1") && !"close".equalsIgnoreCase(headers.get("connection"));
+        }
+    }
+}
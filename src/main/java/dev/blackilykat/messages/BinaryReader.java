@@ -0,0 +1,122 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageFormatException;
+import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads what {@link BinaryWriter} writes, see it for the format
+ */
+public class BinaryReader {
+    private final byte[] bytes;
+    private int position;
+    private final int end;
+    private final List<String> strings = new ArrayList<>();
+
+    public BinaryReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public int readVarInt() throws MessageFormatException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new MessageFormatException("Varint is too long");
+    }
+
+    public int readInt() throws MessageFormatException {
+        int zigzag = readVarInt();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public long readLong() throws MessageFormatException {
+        long zigzag = 0;
+        for(int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new MessageFormatException("Varlong is too long");
+    }
+
+    public boolean readBoolean() throws MessageFormatException {
+        return readByte() != 0;
+    }
+
+    public String readString() throws MessageFormatException {
+        int tag = readVarInt();
+        if(tag == 0) return null;
+        if(tag == 1) {
+            int length = readVarInt();
+            if(length < 0 || length > end - position) {
+                throw new MessageFormatException("String is longer than the message");
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            strings.add(value);
+            return value;
+        }
+        if(tag - 2 >= strings.size() || tag < 0) {
+            throw new MessageFormatException("Reference to string #" + (tag - 2) + " which wasn't sent yet");
+        }
+        return strings.get(tag - 2);
+    }
+
+    /**
+     * @throws MessageInvalidContentsException If the name isn't one of the enum's constants
+     */
+    public <E extends Enum<E>> E readEnum(Class<E> type) throws MessageException {
+        String name = readString();
+        if(name == null) return null;
+        try {
+            return Enum.valueOf(type, name);
+        } catch(IllegalArgumentException e) {
+            throw new MessageInvalidContentsException("Unknown " + type.getSimpleName() + " '" + name + "'");
+        }
+    }
+
+    /**
+     * @return Whether there's anything left to read. Used for optional fields at the end of a message.
+     */
+    public boolean hasRemaining() {
+        return position < end;
+    }
+
+    private byte readByte() throws MessageFormatException {
+        if(position >= end) {
+            throw new MessageFormatException("Message ended unexpectedly");
+        }
+        return bytes[position++];
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the contents of a message in the binary format (see {@link Message#toBinary(int)}).
+ * <ul>
+ *     <li>Unsigned numbers (lengths, counts) are LEB128 varints</li>
+ *     <li>Signed numbers are zigzag encoded first, so small negative numbers like -1 also take a single byte</li>
+ *     <li>Strings start with a varint: 0 for null, 1 for a new string followed by its length and UTF-8 bytes, or n + 2
+ *     to repeat the n-th new string of the same message. So something like an action type only gets spelled out
+ *     once per message.</li>
+ *     <li>Enums are strings with the constant's name</li>
+ * </ul>
+ * Readers ignore whatever is left after the fields they know about, so fields can be added at the end of a message
+ * without breaking older clients.
+ */
+public class BinaryWriter {
+    private byte[] bytes = new byte[64];
+    private int length = 0;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        length = putVarInt(bytes, length, value);
+    }
+
+    public void writeInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeLong(long value) {
+        ensureCapacity(10);
+        long zigzag = (value << 1) ^ (value >> 63);
+        while((zigzag & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        bytes[length++] = (byte) zigzag;
+    }
+
+    public void writeBoolean(boolean value) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) (value ? 1 : 0);
+    }
+
+    public void writeString(String value) {
+        if(value == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer index = strings.get(value);
+        if(index != null) {
+            writeVarInt(index + 2);
+            return;
+        }
+        strings.put(value, strings.size());
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(1);
+        writeVarInt(utf8.length);
+        ensureCapacity(utf8.length);
+        System.arraycopy(utf8, 0, bytes, length, utf8.length);
+        length += utf8.length;
+    }
+
+    public void writeEnum(Enum<?> value) {
+        writeString(value == null ? null : value.name());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if(length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Writes an unsigned varint into the array, which must have enough space for it
+     * @return The position right after the varint
+     */
+    static int putVarInt(byte[] bytes, int position, int value) {
+        while((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * @return How many bytes the value takes as an unsigned varint
+     */
+    static int varIntSize(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -20,16 +20,20 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
 import dev.blackilykat.messages.exceptions.MessageException;
 
+import java.io.IOException;
+
 /**
  * Used to indicate that a side is disconnecting from the socket. The side receiving this message can expect the side
  * who sent it to have already disconnected from the socket.
  */
 public class DisconnectMessage extends Message {
     public static final String MESSAGE_TYPE = "DISCONNECT";
+    public static final int TYPE_ID = 2;
     /**
      * Interval in which the client will attempt to reconnect in seconds. If negative, it will not be included in the
      * json message which indicates the client should not attempt to automatically reconnect.
@@ -48,24 +52,43 @@ public class DisconnectMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
+    public void fillContents(JsonWriter writer) throws IOException {
         if(reconnectIn >= 0) {
-            object.addProperty("reconnect_in", reconnectIn);
+            writer.name("reconnect_in").value(reconnectIn);
         }
     }
 
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeInt(reconnectIn);
+    }
+
     @Override
     public void handle(Client client) {
         client.disconnect();
     }
 
     //@Override
-    public static DisconnectMessage fromJson(JsonObject json) throws MessageException {
-        if(json.has("reconnect_in")) {
-            return new DisconnectMessage(json.get("reconnect_in").getAsInt());
-        } else {
-            return new DisconnectMessage();
+    public static DisconnectMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        DisconnectMessage message = new DisconnectMessage();
+        while(reader.hasNext()) {
+            if(reader.nextName().equals("reconnect_in")) {
+                message.reconnectIn = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
         }
+        return message;
+    }
+
+    //@Override
+    public static DisconnectMessage fromBinary(BinaryReader reader) throws MessageException {
+        return new DisconnectMessage(reader.readInt());
     }
 
 }
@@ -20,16 +20,20 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
 import dev.blackilykat.messages.exceptions.MessageException;
 import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
 
+import java.io.IOException;
+
 /**
  * Used to communicate that an unexpected error of any kind has occurred.
  */
 public class ErrorMessage extends Message {
     public static final String MESSAGE_TYPE = "ERROR";
+    public static final int TYPE_ID = 3;
     /**
      * Human-readable information about the error (could be a stacktrace/exception name for {@link ErrorType#SERVER})
      * <br />If empty, it is not included in the message sent to the client.
@@ -68,12 +72,26 @@ public class ErrorMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        if(info != null && !info.isEmpty()) object.addProperty("info",  info);
-        if(secondsToRetry >= 0) object.addProperty("seconds_to_retry", secondsToRetry);
-        if(relativeToMessage >= 0) object.addProperty("relative_to_message", relativeToMessage);
-        object.addProperty("error_type", errorType.toString());
-        object.addProperty("action", action.toString());
+    public void fillContents(JsonWriter writer) throws IOException {
+        if(info != null && !info.isEmpty()) writer.name("info").value(info);
+        if(secondsToRetry >= 0) writer.name("seconds_to_retry").value(secondsToRetry);
+        if(relativeToMessage >= 0) writer.name("relative_to_message").value(relativeToMessage);
+        writer.name("error_type").value(errorType.toString());
+        writer.name("action").value(action.toString());
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeString(info);
+        writer.writeInt(secondsToRetry);
+        writer.writeInt(relativeToMessage);
+        writer.writeEnum(errorType);
+        writer.writeEnum(action);
     }
 
     @Override
@@ -81,7 +99,12 @@ public class ErrorMessage extends Message {
     }
 
     //@Override
-    public static Message fromJson(JsonObject json) throws MessageException {
+    public static Message fromJson(JsonReader reader) throws IOException, MessageException {
+        throw new MessageInvalidContentsException();
+    }
+
+    //@Override
+    public static ErrorMessage fromBinary(BinaryReader reader) throws MessageException {
         throw new MessageInvalidContentsException();
     }
 
@@ -111,7 +134,12 @@ public class ErrorMessage extends Message {
          * while another client is already doing that). Ideally paired with {@link Action#RETRY} and
          * {@link #secondsToRetry}
          */
-        BUSY
+        BUSY,
+        /**
+         * The client wasn't reading messages as fast as the server was sending them, so some were dropped. Paired with
+         * {@link Action#RECONNECT} so the client can resync.
+         */
+        OVERLOADED
     }
 
     /**
@@ -0,0 +1,98 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+
+import java.io.IOException;
+
+/**
+ * Sent to a client after it sends an ADD or REPLACE {@link LibraryActionMessage} with the hash of its file, telling it
+ * whether it still has to upload the file. If the server already had a blob with that hash (see
+ * {@link dev.blackilykat.BlobStore}), the action is already complete and has been sent to the other clients.
+ */
+public class LibraryActionAckMessage extends Message {
+    public static final String MESSAGE_TYPE = "LIBRARY_ACTION_ACK";
+    public static final int TYPE_ID = 12;
+    public int actionId;
+    /**
+     * If the file has to be uploaded to the http server like for an action without a hash
+     */
+    public boolean uploadRequired;
+
+    public LibraryActionAckMessage(int actionId, boolean uploadRequired) {
+        this.actionId = actionId;
+        this.uploadRequired = uploadRequired;
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("action_id").value(actionId);
+        writer.name("upload_required").value(uploadRequired);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(actionId);
+        writer.writeBoolean(uploadRequired);
+    }
+
+    @Override
+    public void handle(Client client) {
+        client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Clients cannot acknowledge library actions!");
+    }
+
+    //@Override
+    public static LibraryActionAckMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Integer actionId = null;
+        Boolean uploadRequired = null;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "action_id" -> actionId = reader.nextInt();
+                case "upload_required" -> uploadRequired = reader.nextBoolean();
+                default -> reader.skipValue();
+            }
+        }
+        if(actionId == null || uploadRequired == null) {
+            throw new MessageMissingContentsException("Missing action_id or upload_required");
+        }
+        return new LibraryActionAckMessage(actionId, uploadRequired);
+    }
+
+    //@Override
+    public static LibraryActionAckMessage fromBinary(BinaryReader reader) throws MessageException {
+        return new LibraryActionAckMessage(reader.readVarInt(), reader.readBoolean());
+    }
+}
@@ -20,36 +20,60 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.BlobStore;
 import dev.blackilykat.Client;
+import dev.blackilykat.Config;
 import dev.blackilykat.Json;
+import dev.blackilykat.LibraryIndex;
+import dev.blackilykat.Main;
 import dev.blackilykat.Storage;
 import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Used to notify of changes in the library. For ADD and REPLACE, the server should wait about 10 seconds for a
  * connection to be made to the http server so the clients can upload their files. Clients can expect a successful
  * transfer if the http server sends back a 200. When clients get an ADD or REPLACE message from the server they can
  * rely on the http server to get the file as well.
+ * <br />An ADD or REPLACE can also say the sha256 hash of its file. The server then replies with a
+ * {@link LibraryActionAckMessage}, and if it already has a file with that content the action completes without any
+ * upload.
  */
 public class LibraryActionMessage extends Message {
     public static final String MESSAGE_TYPE = "LIBRARY_ACTION";
+    public static final int TYPE_ID = 4;
     /**
-     * The pending action, not a list because I want to play it safe and not allow multiple changes at the same time but
-     * that might change in the future.
+     * The actions waiting for their file transfer, by file name. Only one action at a time can be pending for each
+     * file, but different files can be transferred at the same time.
      */
-    public static PendingAction pendingAction = new PendingAction();
+    public static final Map<String, PendingAction> pendingActions = new ConcurrentHashMap<>();
     public int actionId;
     public Type actionType;
     public String fileName;
     public List<Pair<String, String>> newMetadata;
+    /**
+     * The sha256 hash of the file of an ADD or REPLACE as lowercase hex, or null if unknown
+     * @see BlobStore
+     */
+    public String hash = null;
+    /**
+     * The replay this action is the last of the page of, which gets asked for the next page once this one is sent.
+     * Null if the message wasn't created by a replay.
+     */
+    LibraryActionRequestMessage.Paged replay = null;
 
     public LibraryActionMessage(Type type, int actionId, String fileName) {
         if(type == Type.CHANGE_METADATA) {
@@ -76,33 +100,164 @@ public class LibraryActionMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        object.addProperty("action_type", actionType.toString());
-        object.addProperty("action_id", actionId);
-        object.addProperty("file_name", fileName);
+    public void fillContents(JsonWriter writer) throws IOException {
+        writeFields(writer, actionType, actionId, fileName, newMetadata);
+        if(hash != null) {
+            writer.name("hash").value(hash);
+        }
+    }
+
+    /**
+     * Writes the fields of an action, also used for each action in a {@link LibraryActionsMessage}
+     */
+    static void writeFields(JsonWriter writer, Type actionType, int actionId, String fileName,
+                            List<Pair<String, String>> newMetadata) throws IOException {
+        writer.name("action_type").value(actionType.toString());
+        writer.name("action_id").value(actionId);
+        writer.name("file_name").value(fileName);
+        if(actionType == Type.CHANGE_METADATA) {
+            writer.name("new_metadata").beginArray();
+            for(Pair<String, String> pair : newMetadata) {
+                writer.beginObject();
+                writer.name("key").value(pair.key);
+                writer.name("value").value(pair.value);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeEnum(actionType);
+        writer.writeVarInt(actionId);
+        writer.writeString(fileName);
         if(actionType == Type.CHANGE_METADATA) {
-            object.add("new_metadata", Json.GSON.toJsonTree(newMetadata));
+            writeMetadata(writer, newMetadata);
+        } else if(actionType == Type.ADD || actionType == Type.REPLACE) {
+            writer.writeString(hash);
         }
     }
 
     //@Override
-    public static LibraryActionMessage fromJson(JsonObject json) throws MessageException {
-        Type type = Type.valueOf(json.get("action_type").getAsString());
+    public static LibraryActionMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Type type = null;
+        Integer actionId = null;
+        String fileName = null;
+        List<Pair<String, String>> metadata = null;
+        String hash = null;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "action_type" -> {
+                    String name = reader.nextString();
+                    try {
+                        type = Type.valueOf(name);
+                    } catch(IllegalArgumentException e) {
+                        throw new MessageInvalidContentsException("Unknown action_type '" + name + "'");
+                    }
+                }
+                case "action_id" -> actionId = reader.nextInt();
+                case "file_name" -> fileName = reader.nextString();
+                case "hash" -> hash = Json.nextNullableString(reader);
+                case "new_metadata" -> {
+                    metadata = new ArrayList<>();
+                    reader.beginArray();
+                    while(reader.hasNext()) {
+                        String key = null;
+                        String value = null;
+                        reader.beginObject();
+                        while(reader.hasNext()) {
+                            switch(reader.nextName()) {
+                                case "key" -> key = reader.nextString();
+                                case "value" -> value = reader.nextString();
+                                default -> reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        metadata.add(new Pair<>(key, value));
+                    }
+                    reader.endArray();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        if(type == null || actionId == null || fileName == null) {
+            throw new MessageMissingContentsException("Missing action_type, action_id or file_name");
+        }
         if(type == Type.CHANGE_METADATA) {
-            List<Pair<String, String>> metadata = new ArrayList<>();
-            for (JsonElement metadataEntry : json.get("new_metadata").getAsJsonArray()) {
-                metadata.add(new Pair<>(metadataEntry.getAsJsonObject().get("key").getAsString(),
-                        metadataEntry.getAsJsonObject().get("value").getAsString()));
+            if(metadata == null) {
+                throw new MessageMissingContentsException("Missing new_metadata");
             }
-            return new LibraryActionMessage(type, json.get("action_id").getAsInt(), json.get("file_name").getAsString(), metadata);
+            return new LibraryActionMessage(type, actionId, fileName, metadata);
         } else {
-            return new LibraryActionMessage(type, json.get("action_id").getAsInt(), json.get("file_name").getAsString());
+            LibraryActionMessage message = new LibraryActionMessage(type, actionId, fileName);
+            message.hash = hash;
+            return message;
         }
     }
 
+    //@Override
+    public static LibraryActionMessage fromBinary(BinaryReader reader) throws MessageException {
+        Type type = reader.readEnum(Type.class);
+        if(type == null) {
+            throw new MessageMissingContentsException("Missing action_type");
+        }
+        int actionId = reader.readVarInt();
+        String fileName = reader.readString();
+        if(type == Type.CHANGE_METADATA) {
+            return new LibraryActionMessage(type, actionId, fileName, readMetadata(reader));
+        } else {
+            LibraryActionMessage message = new LibraryActionMessage(type, actionId, fileName);
+            // clients that don't know about hashes end the message after the file name
+            if((type == Type.ADD || type == Type.REPLACE) && reader.hasRemaining()) {
+                message.hash = reader.readString();
+            }
+            return message;
+        }
+    }
+
+    static void writeMetadata(BinaryWriter writer, List<Pair<String, String>> metadata) {
+        writer.writeVarInt(metadata.size());
+        for(Pair<String, String> pair : metadata) {
+            writer.writeString(pair.key);
+            writer.writeString(pair.value);
+        }
+    }
+
+    static List<Pair<String, String>> readMetadata(BinaryReader reader) throws MessageException {
+        List<Pair<String, String>> metadata = new ArrayList<>();
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            metadata.add(new Pair<>(reader.readString(), reader.readString()));
+        }
+        return metadata;
+    }
+
     @Override
     public void handle(Client client) {
         System.out.printf("Maybe received action %d: %s\n", actionId, actionType);
+        // the id check and the id increase must happen atomically or two clients could get the same action id
+        Storage.actionLock.lock();
+        try {
+            handleLocked(client);
+        } finally {
+            Storage.actionLock.unlock();
+        }
+    }
+
+    @Override
+    public void onSent(Client client) {
+        if(replay != null) {
+            // this can run on an event loop, which must not wait on the storage
+            Main.messageExecutor.execute(() -> replay.sendNext(client));
+        }
+    }
+
+    private void handleLocked(Client client) {
         int currentActionId = Storage.getCurrentActionID();
         if(currentActionId == -1) currentActionId = 0;
         if(actionId != currentActionId) {
@@ -115,26 +270,56 @@ public class LibraryActionMessage extends Message {
             return;
         }
         System.out.printf("Received action %d: %s\n", actionId, actionType);
-        if(actionType == Type.ADD || actionType == Type.REPLACE) {
-            if (pendingAction == null || pendingAction.isCancelled() || pendingAction.finished) {
-                pendingAction = new PendingAction(actionId, client.clientId, fileName, actionType);
+        if(!Storage.isValidFileName(fileName)) {
+            client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Invalid file name " + fileName);
+            return;
+        }
+        PendingAction existing = pendingActions.get(fileName);
+        if(existing != null && !existing.isCancelled() && !existing.finished) {
+            ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.ErrorType.BUSY, ErrorMessage.Action.RETRY);
+            errorMessage.relativeToMessage = messageId;
+            errorMessage.info = "Another client is trying to modify this track right now.";
+            /*
+            retry after timeout to see if other client fails to establish a connection, if it has already established
+            a connection then wait until you get another action message which indicates the other client is done. It
+            does return 60 seconds which is arbitrarily selected as an ETA for when the other client would probably
+            be done sending its file, just in case it breaks the connection so that this client isn't left waiting
+            eternally
+             */
+            if (!existing.started) {
+                errorMessage.secondsToRetry = (int) (PendingAction.CONNECTION_TIMEOUT_SECONDS + 1);
             } else {
-                ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.ErrorType.BUSY, ErrorMessage.Action.RETRY);
-                errorMessage.relativeToMessage = messageId;
-                errorMessage.info = "Another client is trying to modify the library right now.";
-                /*
-                retry after timeout to see if other client fails to establish a connection, if it has already established
-                a connection then wait until you get another action message which indicates the other client is done. It
-                does return 60 seconds which is arbitrarily selected as an ETA for when the other client would probably
-                be done sending its file, just in case it breaks the connection so that this client isn't left waiting
-                eternally
-                 */
-                if (!pendingAction.started) {
-                    errorMessage.secondsToRetry = (int) (PendingAction.CONNECTION_TIMEOUT_SECONDS + 1);
-                } else {
-                    errorMessage.secondsToRetry = 60;
+                errorMessage.secondsToRetry = 60;
+            }
+            client.send(errorMessage);
+            return;
+        }
+        if(actionType == Type.ADD || actionType == Type.REPLACE) {
+            if(hash != null) {
+                hash = hash.toLowerCase();
+                if(!BlobStore.isValidHash(hash)) {
+                    client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Invalid sha256 hash " + hash);
+                    return;
                 }
-                client.send(errorMessage);
+            }
+            File file = new File(Storage.LIBRARY, fileName);
+            boolean uploadRequired = true;
+            if(hash != null && Config.BLOB_STORE) {
+                if(actionType == Type.ADD && file.exists()) {
+                    client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Track " + fileName + " already exists!");
+                    return;
+                }
+                uploadRequired = !restoreBlob(file);
+            }
+            if(uploadRequired) {
+                PendingAction pendingAction = new PendingAction(actionId, client.clientId, fileName, actionType);
+                pendingAction.hash = hash;
+                pendingActions.put(fileName, pendingAction);
+            } else {
+                Client.broadcastExcept(this, client.clientId);
+            }
+            if(hash != null) {
+                client.send(new LibraryActionAckMessage(actionId, uploadRequired));
             }
         } else if(actionType == Type.CHANGE_METADATA) {
             //TODO before beta
@@ -151,6 +336,7 @@ public class LibraryActionMessage extends Message {
                 client.send(errorMessage);
                 return;
             }
+            LibraryIndex.remove(fileName);
             Client.broadcastExcept(this, client.clientId);
         }
         Action action = new Action(actionId, client.clientId, fileName, actionType);
@@ -161,6 +347,46 @@ public class LibraryActionMessage extends Message {
         Storage.setCurrentActionID(currentActionId + 1);
     }
 
+    /**
+     * Puts the blob with the hash of this action in the library, if the server has it
+     * @return Whether the file is now in the library
+     */
+    private boolean restoreBlob(File file) {
+        try {
+            if(!BlobStore.restore(hash, file)) return false;
+            // this runs while holding the action lock, so the file only gets read if nothing else has its checksums
+            LibraryIndex.Hashes hashes = null;
+            for(String other : BlobStore.filesWith(hash)) {
+                if(other.equals(fileName)) continue;
+                hashes = LibraryIndex.copyHashes(file, other);
+                if(hashes != null) break;
+            }
+            if(hashes == null) {
+                hashes = LibraryIndex.hash(file, false);
+            }
+            hashes.sha256 = hash;
+            LibraryIndex.update(file, hashes);
+            System.out.printf("Action %d completed without upload, %s was already stored\n", actionId, hash);
+            return true;
+        } catch(IOException e) {
+            System.err.println("Could not restore blob " + hash + " to " + fileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Removes the pending actions whose client didn't start the file transfer in time or stopped uploading. Gets called periodically so
+     * that abandoned actions don't keep their file busy.
+     */
+    public static void sweepPendingActions() {
+        pendingActions.values().removeIf(pendingAction -> {
+            if(!pendingAction.isCancelled()) return false;
+            pendingAction.closeUpload();
+            pendingAction.discardUpload();
+            return true;
+        });
+    }
+
     public enum Type {
         /**
          * Add a new song to the library
@@ -204,43 +430,95 @@ public class LibraryActionMessage extends Message {
         /**
          * If the file transfer relative to the action is completed
          */
-        public boolean finished = false;
+        public volatile boolean finished = false;
         /**
-         * If the file transfer relative to the action has started
+         * If the file transfer relative to the action has started. Use {@link #tryStart()} to set it.
          */
-        public boolean started = false;
+        public volatile boolean started = false;
         /**
          * If the pending action was cancelled and another can override it. Used in case a client either does not start
          * the file transfer in time or interrupts the file transfer before it is finished.<br />
          * Do not check this value directly! Use {@link #isCancelled()} instead, it will check if the client failed to
          * connect within the timeout time.
          */
-        public boolean cancelled = false;
+        public volatile boolean cancelled = false;
+        /**
+         * Where the file is written while it's being uploaded, before it gets moved into the library
+         */
+        public transient File uploadFile;
+        /**
+         * How many bytes of the file have been received so far
+         */
+        public volatile long uploadedBytes = 0;
+        /**
+         * When the file transfer last made progress, updated as the file arrives. Started transfers that don't make
+         * progress for {@link Config#UPLOAD_IDLE_TIMEOUT_SECONDS} get cancelled, even in the middle of a request.
+         */
+        public volatile Instant lastActivity;
+        /**
+         * The request the file is being received through right now, null if there is none. Gets closed when the action
+         * is swept away so that a client that stopped sending doesn't keep the thread reading it waiting forever.
+         */
+        public transient volatile AutoCloseable uploadConnection = null;
+        /**
+         * Held while something is being written to {@link #uploadFile}
+         */
+        public final transient ReentrantLock uploadLock = new ReentrantLock();
+        /**
+         * The sha256 hash the client said the file has, checked once the upload is complete. Null if it didn't say.
+         */
+        public String hash = null;
 
         public PendingAction(int actionId, int clientId, String fileName, Type actionType) {
             super(actionId, clientId, fileName, actionType);
             this.creationTime = Instant.now();
+            this.lastActivity = creationTime;
+            this.uploadFile = new File(Storage.UPLOADS, actionId + ".part");
         }
 
         /**
-         * Creates a blank, already cancelled pending action. Used to initialize the first value when there are no
-         * pending actions yet
+         * Checks if the client failed to connect within the timeout time or stopped uploading and returns if the
+         * action is cancelled.
          */
-        public PendingAction() {
-            super();
-            this.creationTime = Instant.MIN;
-            this.cancelled = true;
-        }
-
-        /**
-         * Checks if the client failed to connect within the timeout time and returns if the action is cancelled.
-         */
-        public boolean isCancelled() {
+        public synchronized boolean isCancelled() {
             if(!started && !cancelled && creationTime.plusMillis((long) (CONNECTION_TIMEOUT_SECONDS * 1000)).compareTo(Instant.now()) < 0) {
                 cancelled = true;
             }
+            if(started && !finished && !cancelled
+                    && lastActivity.plusSeconds(Config.UPLOAD_IDLE_TIMEOUT_SECONDS).compareTo(Instant.now()) < 0) {
+                cancelled = true;
+            }
             return cancelled;
         }
+
+        /**
+         * Marks the file transfer as started (or as still going), unless the action got cancelled in the meantime.
+         * @return Whether the transfer can go ahead
+         */
+        public synchronized boolean tryStart() {
+            if(isCancelled()) return false;
+            started = true;
+            lastActivity = Instant.now();
+            return true;
+        }
+
+        /**
+         * Closes the request the file is being received through, if any
+         */
+        public void closeUpload() {
+            AutoCloseable connection = uploadConnection;
+            if(connection == null) return;
+            try {
+                connection.close();
+            } catch(Exception ignored) {}
+        }
+
+        /**
+         * Deletes whatever was uploaded so far
+         */
+        public void discardUpload() {
+            uploadFile.delete();
+        }
     }
 
     //TODO maybe move??? i dont really know this might be getting a bit too big for a message class and unintuitive
@@ -250,7 +528,9 @@ public class LibraryActionMessage extends Message {
          */
         public int actionId;
         /**
-         * The {@link dev.blackilykat.Client#clientId} of the client who performed the action
+         * The {@link dev.blackilykat.Client#clientId} of the client who performed the action, or -1 if the file was
+         * changed outside of the server
+         * @see dev.blackilykat.LibraryWatcher
          */
         public int clientId;
         /**
@@ -20,19 +20,44 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
+import dev.blackilykat.Config;
 import dev.blackilykat.Storage;
 import dev.blackilykat.messages.exceptions.MessageException;
-import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+import org.h2.mvstore.Cursor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Used when a client needs to receive missing actions from the server.
- * Clients can expect the server to send all library actions from (inclusive) {@link #start} up to the latest one.
+ * Clients can expect the server to send all library actions from (inclusive) {@link #start} up to the latest one, as
+ * one {@link LibraryActionMessage} each, or in {@link LibraryActionsMessage}s of up to {@link Config#REPLAY_PAGE_SIZE}
+ * actions each if the client set {@link #batched}. If some of those actions were already compacted, the server sends
+ * a {@link LibrarySnapshotMessage} first and then the actions after it. The same happens in the middle of a replay if
+ * the log gets compacted past the actions that weren't sent yet. Clients that didn't set {@link #snapshots} get
+ * the snapshot as an ADD for every file in it instead, with the id of the last action about the file. Those can't
+ * tell them about files that were removed before the snapshot.
  */
 public class LibraryActionRequestMessage extends Message {
     public static final String MESSAGE_TYPE = "LIBRARY_ACTION_REQUEST";
+    public static final int TYPE_ID = 6;
     public int start;
+    /**
+     * If the client can receive the actions in {@link LibraryActionsMessage}s. Clients from before those existed don't
+     * send it, and get one {@link LibraryActionMessage} per action.
+     */
+    public boolean batched = false;
+    /**
+     * If the client can receive {@link LibrarySnapshotMessage}s. Clients from before those existed don't send it.
+     */
+    public boolean snapshots = false;
 
     public LibraryActionRequestMessage(int start) {
         this.start = start;
@@ -44,8 +69,22 @@ public class LibraryActionRequestMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        object.addProperty("start", start);
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("start").value(start);
+        writer.name("batched").value(batched);
+        writer.name("snapshots").value(snapshots);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(start);
+        writer.writeBoolean(batched);
+        writer.writeBoolean(snapshots);
     }
 
     @Override
@@ -56,14 +95,236 @@ public class LibraryActionRequestMessage extends Message {
             client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, this.messageId, String.format("Requested action #%d, but the latest is #%d", start, currentActionId-1));
             return;
         }
-        for(int i = start; i < currentActionId; i++) {
-            System.out.printf("DEEZ BUGS %d\n", i);
-            client.send(Storage.actions.get(i).toMessage());
+        // starts with the snapshot by itself if some of the actions were already compacted
+        new Replay(start, currentActionId, batched, snapshots).sendNext(client);
+    }
+
+    //@Override
+    public static LibraryActionRequestMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Integer start = null;
+        boolean batched = false;
+        boolean snapshots = false;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "start" -> start = reader.nextInt();
+                case "batched" -> batched = reader.nextBoolean();
+                case "snapshots" -> snapshots = reader.nextBoolean();
+                default -> reader.skipValue();
+            }
+        }
+        if(start == null) {
+            throw new MessageMissingContentsException("Missing start");
         }
+        LibraryActionRequestMessage message = new LibraryActionRequestMessage(start);
+        message.batched = batched;
+        message.snapshots = snapshots;
+        return message;
     }
 
     //@Override
-    public static LibraryActionRequestMessage fromJson(JsonObject json) throws MessageException {
-        return new LibraryActionRequestMessage(json.get("start").getAsInt());
+    public static LibraryActionRequestMessage fromBinary(BinaryReader reader) throws MessageException {
+        LibraryActionRequestMessage message = new LibraryActionRequestMessage(reader.readVarInt());
+        if(reader.hasRemaining()) {
+            message.batched = reader.readBoolean();
+        }
+        if(reader.hasRemaining()) {
+            message.snapshots = reader.readBoolean();
+        }
+        return message;
+    }
+
+    /**
+     * Sends a page of actions the way the client asked for, the last message asking for the next page once it's sent
+     */
+    private static void sendActions(Client client, List<LibraryActionMessage.Action> page, boolean batched,
+                                    Paged replay) {
+        if(batched) {
+            LibraryActionsMessage message = new LibraryActionsMessage(page);
+            message.replay = replay;
+            client.send(message);
+            return;
+        }
+        for(int i = 0; i < page.size(); i++) {
+            LibraryActionMessage message = page.get(i).toMessage();
+            if(i == page.size() - 1) {
+                message.replay = replay;
+            }
+            client.send(message);
+        }
+    }
+
+    /**
+     * Something sent one page at a time
+     */
+    interface Paged {
+        /**
+         * Sends the next page, if there is one. Reads from the storage, so it shouldn't run on an event loop.
+         */
+        void sendNext(Client client);
+    }
+
+    /**
+     * Goes through the stored actions one page at a time. The next page is only read once the previous one has been
+     * written to the socket (see {@link LibraryActionsMessage#onSent(Client)}), so a client that's far behind doesn't
+     * make the server load all the actions it's missing at once. Each page is read with a new cursor, so nothing is
+     * kept open while waiting for a slow client.
+     * <br />If the actions that weren't sent yet get compacted in the meantime, the replay goes on with the snapshot
+     * and the actions after it.
+     */
+    static class Replay implements Paged {
+        /**
+         * The id of the next action to send
+         */
+        private int next;
+        /**
+         * The id of the first action that is not part of the replay
+         */
+        private final int end;
+        /**
+         * @see LibraryActionRequestMessage#batched
+         */
+        private final boolean batched;
+        /**
+         * @see LibraryActionRequestMessage#snapshots
+         */
+        private final boolean snapshots;
+        /**
+         * Takes over once actions this still had to send got compacted
+         */
+        private SnapshotReplay snapshotReplay = null;
+
+        Replay(int start, int end, boolean batched, boolean snapshots) {
+            this.next = start;
+            this.end = end;
+            this.batched = batched;
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public void sendNext(Client client) {
+            if(snapshotReplay == null) {
+                if(next >= end) return;
+                List<LibraryActionMessage.Action> page = new ArrayList<>(Config.REPLAY_PAGE_SIZE);
+                // the compactor moves the horizon while holding the same lock and only deletes actions after that, so
+                // the actions after the horizon can't go away while the page is read
+                Storage.actionLock.lock();
+                try {
+                    int horizon = Storage.getCompactionHorizon();
+                    if(next < horizon) {
+                        snapshotReplay = new SnapshotReplay(horizon, end, snapshots, batched);
+                    } else {
+                        Cursor<Integer, LibraryActionMessage.Action> cursor = Storage.actions.cursor(next);
+                        while(page.size() < Config.REPLAY_PAGE_SIZE && cursor.hasNext()) {
+                            int actionId = cursor.next();
+                            if(actionId >= end) break;
+                            page.add(cursor.getValue());
+                            next = actionId + 1;
+                        }
+                        if(page.size() < Config.REPLAY_PAGE_SIZE) {
+                            next = end;
+                        }
+                    }
+                } finally {
+                    Storage.actionLock.unlock();
+                }
+                if(snapshotReplay == null) {
+                    if(!page.isEmpty()) {
+                        sendActions(client, page, batched, this);
+                    }
+                    return;
+                }
+            }
+            snapshotReplay.sendNext(client);
+        }
+    }
+
+    /**
+     * Goes through the snapshot one page at a time like {@link Replay}, then goes on with the actions after it. If the
+     * log gets compacted again before the snapshot is over, the snapshot starts over with the new horizon.
+     */
+    static class SnapshotReplay implements Paged {
+        private int horizon;
+        /**
+         * The id of the first action that is not part of the replay
+         */
+        private final int end;
+        /**
+         * @see LibraryActionRequestMessage#snapshots
+         */
+        private final boolean snapshots;
+        /**
+         * @see LibraryActionRequestMessage#batched
+         */
+        private final boolean batched;
+        /**
+         * The last file that was sent, null if none was yet
+         */
+        private String lastFile = null;
+        private Replay tail;
+        private boolean done = false;
+
+        SnapshotReplay(int horizon, int end, boolean snapshots, boolean batched) {
+            this.horizon = horizon;
+            this.end = end;
+            this.snapshots = snapshots;
+            this.batched = batched;
+            this.tail = new Replay(horizon, end, batched, snapshots);
+        }
+
+        /**
+         * Sends the next page of the snapshot, or the first page of the actions after it once the snapshot is over
+         */
+        @Override
+        public void sendNext(Client client) {
+            if(done) {
+                tail.sendNext(client);
+                return;
+            }
+            Map<String, Integer> files = new LinkedHashMap<>();
+            Storage.actionLock.lock();
+            try {
+                int currentHorizon = Storage.getCompactionHorizon();
+                if(currentHorizon != horizon) {
+                    horizon = currentHorizon;
+                    lastFile = null;
+                    tail = new Replay(horizon, end, batched, snapshots);
+                }
+                Cursor<String, Integer> cursor = Storage.snapshot.cursor(lastFile);
+                while(files.size() < Config.REPLAY_PAGE_SIZE && cursor.hasNext()) {
+                    String fileName = cursor.next();
+                    // the cursor starts from the last file that was sent
+                    if(fileName.equals(lastFile)) continue;
+                    files.put(fileName, cursor.getValue());
+                    lastFile = fileName;
+                }
+                done = !cursor.hasNext();
+            } finally {
+                Storage.actionLock.unlock();
+            }
+            if(snapshots) {
+                // an empty library still gets a page, so the client knows to remove everything
+                LibrarySnapshotMessage message = new LibrarySnapshotMessage(horizon, files, done);
+                message.replay = this;
+                client.send(message);
+            } else {
+                sendAsActions(client, files);
+            }
+        }
+
+        /**
+         * Sends a page of the snapshot as ADD actions, for clients that can't receive snapshots
+         */
+        private void sendAsActions(Client client, Map<String, Integer> files) {
+            if(files.isEmpty()) {
+                tail.sendNext(client);
+                return;
+            }
+            List<LibraryActionMessage.Action> page = new ArrayList<>(files.size());
+            for(Map.Entry<String, Integer> file : files.entrySet()) {
+                page.add(new LibraryActionMessage.Action(file.getValue(), -1, file.getKey(),
+                        LibraryActionMessage.Type.ADD));
+            }
+            sendActions(client, page, batched, this);
+        }
     }
 }
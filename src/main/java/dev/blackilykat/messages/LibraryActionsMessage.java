@@ -0,0 +1,143 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.Main;
+import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries many library actions in a single message. Used by the server to replay the actions a client asked for with
+ * a {@link LibraryActionRequestMessage}, one page at a time. Each action has the same fields it would have in a
+ * {@link LibraryActionMessage}.
+ */
+public class LibraryActionsMessage extends Message {
+    public static final String MESSAGE_TYPE = "LIBRARY_ACTIONS";
+    public static final int TYPE_ID = 7;
+    public List<LibraryActionMessage.Action> actions;
+    /**
+     * The replay this page is part of, which gets asked for the next page once this one is sent. Null if the message
+     * wasn't created by a replay.
+     */
+    LibraryActionRequestMessage.Paged replay = null;
+
+    public LibraryActionsMessage(List<LibraryActionMessage.Action> actions) {
+        this.actions = actions;
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("actions").beginArray();
+        for(LibraryActionMessage.Action action : actions) {
+            writer.beginObject();
+            LibraryActionMessage.writeFields(writer, action.actionType, action.actionId, action.fileName, action.newMetadata);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(actions.size());
+        // ids are usually consecutive, so only the difference from the previous one is written
+        int previousId = 0;
+        for(LibraryActionMessage.Action action : actions) {
+            writer.writeEnum(action.actionType);
+            writer.writeInt(action.actionId - previousId);
+            previousId = action.actionId;
+            writer.writeString(action.fileName);
+            if(action.actionType == LibraryActionMessage.Type.CHANGE_METADATA) {
+                LibraryActionMessage.writeMetadata(writer, action.newMetadata);
+            }
+        }
+    }
+
+    @Override
+    public void handle(Client client) {
+        client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Clients cannot send library actions in bulk!");
+    }
+
+    @Override
+    public void onSent(Client client) {
+        if(replay != null) {
+            // this can run on an event loop, which must not wait on the storage
+            Main.messageExecutor.execute(() -> replay.sendNext(client));
+        }
+    }
+
+    //@Override
+    public static LibraryActionsMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        List<LibraryActionMessage.Action> actions = new ArrayList<>();
+        while(reader.hasNext()) {
+            if(!reader.nextName().equals("actions")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while(reader.hasNext()) {
+                reader.beginObject();
+                LibraryActionMessage message = LibraryActionMessage.fromJson(reader);
+                reader.endObject();
+                actions.add(new LibraryActionMessage.Action(message.actionId, -1, message.fileName, message.actionType, message.newMetadata));
+            }
+            reader.endArray();
+        }
+        return new LibraryActionsMessage(actions);
+    }
+
+    //@Override
+    public static LibraryActionsMessage fromBinary(BinaryReader reader) throws MessageException {
+        int count = reader.readVarInt();
+        List<LibraryActionMessage.Action> actions = new ArrayList<>();
+        int actionId = 0;
+        for(int i = 0; i < count; i++) {
+            LibraryActionMessage.Type type = reader.readEnum(LibraryActionMessage.Type.class);
+            if(type == null) {
+                throw new MessageMissingContentsException("Missing action_type");
+            }
+            actionId += reader.readInt();
+            String fileName = reader.readString();
+            List<LibraryActionMessage.Pair<String, String>> metadata = null;
+            if(type == LibraryActionMessage.Type.CHANGE_METADATA) {
+                metadata = LibraryActionMessage.readMetadata(reader);
+            }
+            actions.add(new LibraryActionMessage.Action(actionId, -1, fileName, type, metadata));
+        }
+        return new LibraryActionsMessage(actions);
+    }
+}
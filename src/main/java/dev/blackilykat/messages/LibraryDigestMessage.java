@@ -0,0 +1,197 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.HashAlgorithm;
+import dev.blackilykat.Json;
+import dev.blackilykat.LibraryDigest;
+import dev.blackilykat.messages.exceptions.MessageException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Answers a {@link LibraryDigestRequestMessage} with parts of the {@link LibraryDigest}: always the root, and either
+ * the digest of every bucket or the files (with their checksums) of the buckets that were asked for. Uses the digest of
+ * the algorithm the client's {@link LibraryHashesMessage} uses.
+ */
+public class LibraryDigestMessage extends Message {
+    public static final String MESSAGE_TYPE = "LIBRARY_DIGEST";
+    public static final int TYPE_ID = 11;
+    public String root;
+    /**
+     * The digest of every bucket in order, or null if not included
+     */
+    public List<String> buckets = null;
+    /**
+     * The files in each requested bucket mapped to their checksum, by bucket
+     */
+    public Map<Integer, Map<String, Long>> contents = new TreeMap<>();
+
+    public LibraryDigestMessage(String root) {
+        this.root = root;
+    }
+
+    /**
+     * @param requestedBuckets The buckets to include the files of, or an empty list to include the bucket digests
+     * @param algorithm The algorithm of the digest, one of {@link dev.blackilykat.LibraryIndex#algorithms()}
+     */
+    public static LibraryDigestMessage create(List<Integer> requestedBuckets, HashAlgorithm algorithm) {
+        LibraryDigest digest = LibraryDigest.of(algorithm);
+        // so the root matches the rest of the message
+        synchronized(digest) {
+            LibraryDigestMessage message = new LibraryDigestMessage(digest.root());
+            if(requestedBuckets.isEmpty()) {
+                message.buckets = digest.bucketDigests();
+            }
+            for(int bucket : requestedBuckets) {
+                message.contents.put(bucket, digest.bucket(bucket));
+            }
+            return message;
+        }
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("root").value(root);
+        if(buckets != null) {
+            writer.name("buckets").beginArray();
+            for(String digest : buckets) {
+                writer.value(digest);
+            }
+            writer.endArray();
+        }
+        if(!contents.isEmpty()) {
+            writer.name("contents").beginArray();
+            for(Map.Entry<Integer, Map<String, Long>> bucket : contents.entrySet()) {
+                writer.beginObject();
+                writer.name("bucket").value(bucket.getKey());
+                writer.name("hashes").beginObject();
+                for(Map.Entry<String, Long> entry : bucket.getValue().entrySet()) {
+                    writer.name(entry.getKey()).value(entry.getValue());
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeString(root);
+        writer.writeBoolean(buckets != null);
+        if(buckets != null) {
+            writer.writeVarInt(buckets.size());
+            buckets.forEach(writer::writeString);
+        }
+        writer.writeVarInt(contents.size());
+        for(Map.Entry<Integer, Map<String, Long>> bucket : contents.entrySet()) {
+            writer.writeVarInt(bucket.getKey());
+            writer.writeVarInt(bucket.getValue().size());
+            for(Map.Entry<String, Long> entry : bucket.getValue().entrySet()) {
+                writer.writeString(entry.getKey());
+                writer.writeLong(entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void handle(Client client) {
+        client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Clients cannot send library digests!");
+    }
+
+    //@Override
+    public static LibraryDigestMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        LibraryDigestMessage message = new LibraryDigestMessage(null);
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "root" -> message.root = reader.nextString();
+                case "buckets" -> {
+                    message.buckets = new ArrayList<>();
+                    Json.readStrings(reader, message.buckets);
+                }
+                case "contents" -> {
+                    reader.beginArray();
+                    while(reader.hasNext()) {
+                        int bucket = -1;
+                        Map<String, Long> hashes = new TreeMap<>();
+                        reader.beginObject();
+                        while(reader.hasNext()) {
+                            switch(reader.nextName()) {
+                                case "bucket" -> bucket = reader.nextInt();
+                                case "hashes" -> {
+                                    reader.beginObject();
+                                    while(reader.hasNext()) {
+                                        hashes.put(reader.nextName(), reader.nextLong());
+                                    }
+                                    reader.endObject();
+                                }
+                                default -> reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        message.contents.put(bucket, hashes);
+                    }
+                    reader.endArray();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        return message;
+    }
+
+    //@Override
+    public static LibraryDigestMessage fromBinary(BinaryReader reader) throws MessageException {
+        LibraryDigestMessage message = new LibraryDigestMessage(reader.readString());
+        if(reader.readBoolean()) {
+            message.buckets = new ArrayList<>();
+            for(int i = reader.readVarInt(); i > 0; i--) {
+                message.buckets.add(reader.readString());
+            }
+        }
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            int bucket = reader.readVarInt();
+            Map<String, Long> hashes = new TreeMap<>();
+            for(int j = reader.readVarInt(); j > 0; j--) {
+                hashes.put(reader.readString(), reader.readLong());
+            }
+            message.contents.put(bucket, hashes);
+        }
+        return message;
+    }
+}
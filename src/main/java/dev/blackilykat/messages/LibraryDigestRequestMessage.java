@@ -0,0 +1,117 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.HashAlgorithm;
+import dev.blackilykat.LibraryDigest;
+import dev.blackilykat.LibraryIndex;
+import dev.blackilykat.messages.exceptions.MessageException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Asks the server for parts of the {@link LibraryDigest}, answered with a {@link LibraryDigestMessage}. Without any
+ * buckets the server sends the digest of every bucket, so the client can find out which ones differ from its own and
+ * then ask for the files in only those.
+ */
+public class LibraryDigestRequestMessage extends Message {
+    public static final String MESSAGE_TYPE = "LIBRARY_DIGEST_REQUEST";
+    public static final int TYPE_ID = 10;
+    /**
+     * The buckets to get the files of, or empty to get the digest of every bucket
+     */
+    public List<Integer> buckets;
+
+    public LibraryDigestRequestMessage(List<Integer> buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        if(!buckets.isEmpty()) {
+            writer.name("buckets").beginArray();
+            for(int bucket : buckets) {
+                writer.value(bucket);
+            }
+            writer.endArray();
+        }
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(buckets.size());
+        buckets.forEach(writer::writeVarInt);
+    }
+
+    @Override
+    public void handle(Client client) {
+        for(int bucket : buckets) {
+            if(bucket < 0 || bucket >= LibraryDigest.BUCKETS) {
+                client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId,
+                        "Bucket " + bucket + " does not exist, there are " + LibraryDigest.BUCKETS);
+                return;
+            }
+        }
+        HashAlgorithm algorithm = client.hashAlgorithm != null ? client.hashAlgorithm : LibraryIndex.defaultAlgorithm();
+        client.send(LibraryDigestMessage.create(buckets, algorithm));
+    }
+
+    //@Override
+    public static LibraryDigestRequestMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        List<Integer> buckets = new ArrayList<>();
+        while(reader.hasNext()) {
+            if(!reader.nextName().equals("buckets")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while(reader.hasNext()) {
+                buckets.add(reader.nextInt());
+            }
+            reader.endArray();
+        }
+        return new LibraryDigestRequestMessage(buckets);
+    }
+
+    //@Override
+    public static LibraryDigestRequestMessage fromBinary(BinaryReader reader) throws MessageException {
+        List<Integer> buckets = new ArrayList<>();
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            buckets.add(reader.readVarInt());
+        }
+        return new LibraryDigestRequestMessage(buckets);
+    }
+}
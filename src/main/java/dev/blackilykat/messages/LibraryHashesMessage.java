@@ -20,29 +20,32 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
+import dev.blackilykat.HashAlgorithm;
 import dev.blackilykat.Json;
-import dev.blackilykat.Storage;
+import dev.blackilykat.LibraryIndex;
 import dev.blackilykat.messages.exceptions.MessageException;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 
 /**
- * Sends every song's filename along with its crc32 hash. Used to make sure libraries dont get desynced, which would
- * ideally happen only if someone goes out of their way to manually edit music files not through the application. This
- * would also help discover and repair desync caused due to bugs though.
+ * Sends every song's filename along with its checksum, calculated with the {@link HashAlgorithm} in
+ * {@link #algorithm} (crc32 for clients that didn't pick one in their {@link TransportOptionsMessage}). Used to make
+ * sure libraries dont get desynced, which would ideally happen only if someone goes out of their way to manually edit
+ * music files not through the application. This would also help discover and repair desync caused due to bugs though.
  */
 public class LibraryHashesMessage extends Message {
     public static final String MESSAGE_TYPE = "LIBRARY_HASHES";
+    public static final int TYPE_ID = 8;
     Map<String, Long> hashes;
+    /**
+     * The id of the {@link HashAlgorithm} of the hashes, or null if unknown (crc32)
+     */
+    public String algorithm = null;
 
     public LibraryHashesMessage() {
         hashes = new HashMap<>();
@@ -52,6 +55,11 @@ public class LibraryHashesMessage extends Message {
         this.hashes = hashes;
     }
 
+    public LibraryHashesMessage(Map<String, Long> hashes, String algorithm) {
+        this.hashes = hashes;
+        this.algorithm = algorithm;
+    }
+
     public void add(String fileName, long hash) {
         hashes.put(fileName, hash);
     }
@@ -62,8 +70,30 @@ public class LibraryHashesMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        object.add("hashes", Json.GSON.toJsonTree(hashes));
+    public void fillContents(JsonWriter writer) throws IOException {
+        if(algorithm != null) {
+            writer.name("algorithm").value(algorithm);
+        }
+        writer.name("hashes").beginObject();
+        for(Map.Entry<String, Long> entry : hashes.entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(hashes.size());
+        for(Map.Entry<String, Long> entry : hashes.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.writeLong(entry.getValue());
+        }
+        writer.writeString(algorithm);
     }
 
     @Override
@@ -71,28 +101,40 @@ public class LibraryHashesMessage extends Message {
         //TODO
     }
 
-    public static LibraryHashesMessage create() throws IOException {
-        LibraryHashesMessage message = new LibraryHashesMessage();
-        assert Storage.LIBRARY.exists() && Storage.LIBRARY.isDirectory();
-        System.out.println("Calculating hashes for dir " + Storage.LIBRARY.getAbsolutePath());
-        for (File file : Storage.LIBRARY.listFiles()) {
-            CheckedInputStream inputStream = new CheckedInputStream(new FileInputStream(file), new CRC32());
-            // 1MB
-            byte[] buffer = new byte[1048576];
-            while(inputStream.read(buffer, 0, buffer.length) >= 0) {}
-            message.add(file.getName(), inputStream.getChecksum().getValue());
-            System.out.println("Calculated checksum for file " + file.getName() + ": " + inputStream.getChecksum().getValue());
+    /**
+     * Creates the message from the checksums stored in the {@link LibraryIndex}, without reading any file.
+     * @param algorithm One of {@link LibraryIndex#algorithms()}
+     */
+    public static LibraryHashesMessage create(HashAlgorithm algorithm) {
+        return new LibraryHashesMessage(LibraryIndex.snapshot(algorithm), algorithm.id);
+    }
+
+    //@Override
+    public static LibraryHashesMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Map<String, Long> map = new HashMap<>();
+        String algorithm = null;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "algorithm" -> algorithm = Json.nextNullableString(reader);
+                case "hashes" -> {
+                    reader.beginObject();
+                    while(reader.hasNext()) {
+                        map.put(reader.nextName(), reader.nextLong());
+                    }
+                    reader.endObject();
+                }
+                default -> reader.skipValue();
+            }
         }
-        return message;
+        return new LibraryHashesMessage(map, algorithm);
     }
 
     //@Override
-    public static LibraryHashesMessage fromJson(JsonObject json) throws MessageException {
-        JsonObject hashes = json.get("hashes").getAsJsonObject();
+    public static LibraryHashesMessage fromBinary(BinaryReader reader) throws MessageException {
         Map<String, Long> map = new HashMap<>();
-        for (Map.Entry<String, JsonElement> entry : hashes.asMap().entrySet()) {
-            map.put(entry.getKey(), entry.getValue().getAsLong());
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            map.put(reader.readString(), reader.readLong());
         }
-        return new LibraryHashesMessage(map);
+        return new LibraryHashesMessage(map, reader.hasRemaining() ? reader.readString() : null);
     }
 }
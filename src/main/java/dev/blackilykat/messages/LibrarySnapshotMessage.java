@@ -0,0 +1,151 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.Main;
+import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sent instead of the old actions when a client asks for actions that were already compacted (see
+ * {@link dev.blackilykat.ActionLogCompactor}), if it set {@link LibraryActionRequestMessage#snapshots}. Lists every
+ * file that was in the library right before action {@link #horizon}, with the id of the last action about it. Clients
+ * should end up with exactly these files, then apply the actions from the horizon on, which follow right after the
+ * last page.
+ * <br />Big snapshots are split in pages of up to {@link dev.blackilykat.Config#REPLAY_PAGE_SIZE} files, all with the
+ * same horizon, the last one having {@link #last} set. If the log gets compacted again before the last page is sent,
+ * the snapshot starts over from its first page with the new horizon, so clients should drop the pages they got with
+ * an older one.
+ */
+public class LibrarySnapshotMessage extends Message {
+    public static final String MESSAGE_TYPE = "LIBRARY_SNAPSHOT";
+    public static final int TYPE_ID = 13;
+    /**
+     * The id of the first action that is not part of the snapshot
+     */
+    public int horizon;
+    /**
+     * File names with the id of the last action about each of them
+     */
+    public Map<String, Integer> files;
+    /**
+     * If this is the last page of the snapshot
+     */
+    public boolean last;
+    /**
+     * The replay this page is part of, which gets asked for the next page once this one is sent. Null if the message
+     * wasn't created by a replay.
+     */
+    LibraryActionRequestMessage.Paged replay = null;
+
+    public LibrarySnapshotMessage(int horizon, Map<String, Integer> files, boolean last) {
+        this.horizon = horizon;
+        this.files = files;
+        this.last = last;
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("horizon").value(horizon);
+        writer.name("files").beginObject();
+        for(Map.Entry<String, Integer> entry : files.entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+        writer.name("last").value(last);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(horizon);
+        writer.writeVarInt(files.size());
+        for(Map.Entry<String, Integer> entry : files.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.writeVarInt(entry.getValue());
+        }
+        writer.writeBoolean(last);
+    }
+
+    @Override
+    public void handle(Client client) {
+        client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Clients cannot send library snapshots!");
+    }
+
+    @Override
+    public void onSent(Client client) {
+        if(replay != null) {
+            // this can run on an event loop, which must not wait on the storage
+            Main.messageExecutor.execute(() -> replay.sendNext(client));
+        }
+    }
+
+    //@Override
+    public static LibrarySnapshotMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Integer horizon = null;
+        Map<String, Integer> files = new LinkedHashMap<>();
+        boolean last = true;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "horizon" -> horizon = reader.nextInt();
+                case "files" -> {
+                    reader.beginObject();
+                    while(reader.hasNext()) {
+                        files.put(reader.nextName(), reader.nextInt());
+                    }
+                    reader.endObject();
+                }
+                case "last" -> last = reader.nextBoolean();
+                default -> reader.skipValue();
+            }
+        }
+        if(horizon == null) {
+            throw new MessageMissingContentsException("Missing horizon");
+        }
+        return new LibrarySnapshotMessage(horizon, files, last);
+    }
+
+    //@Override
+    public static LibrarySnapshotMessage fromBinary(BinaryReader reader) throws MessageException {
+        int horizon = reader.readVarInt();
+        Map<String, Integer> files = new LinkedHashMap<>();
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            files.put(reader.readString(), reader.readVarInt());
+        }
+        return new LibrarySnapshotMessage(horizon, files, reader.readBoolean());
+    }
+}
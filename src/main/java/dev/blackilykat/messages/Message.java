@@ -20,16 +20,29 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
 import dev.blackilykat.Json;
 import dev.blackilykat.messages.exceptions.MessageException;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
 public abstract class Message implements Cloneable {
     /**
      * An increasing identifier which should be unique per session (as in every connection will have its own counter)
      */
     public int messageId = -1;
+    /**
+     * Cached serialized form of the message, see {@link #toBytes(int)}
+     */
+    private volatile Encoded encoded = null;
+    /**
+     * Cached binary contents of the message, see {@link #toBinary(int)}
+     */
+    private volatile byte[] binaryContents = null;
 
     /**
      * Returns a message identical to this one but with a new {@link #messageId}.
@@ -49,34 +62,128 @@ public abstract class Message implements Cloneable {
     public abstract String getMessageType();
 
     /**
-     * Fills the provided {@link JsonObject} with all the information specific to that message type (this means the
-     * type itself and the message id are excluded)
+     * Writes all the information specific to that message type as fields of the object the writer is in (this means
+     * the type itself and the message id are excluded)
      */
-    public abstract void fillContents(JsonObject object);
+    public abstract void fillContents(JsonWriter writer) throws IOException;
+
+    /**
+     * @return The number identifying the message type in the binary format. Must be unique and never change.
+     */
+    public abstract int getTypeId();
+
+    /**
+     * Writes the same information as {@link #fillContents(JsonWriter)} in the binary format
+     */
+    public abstract void writeContents(BinaryWriter writer);
 
     public abstract void handle(Client client);
 
+    /**
+     * Called once the message has been written to the client's socket.
+     */
+    public void onSent(Client client) {}
+
     public String toJson() {
         if(messageId < 0) {
             throw new IllegalStateException("The message ID is a negative value ("+messageId+")! Did you forget to set it?");
         }
-        JsonObject object = new JsonObject();
-        object.addProperty("message_type", getMessageType());
-        object.addProperty("message_id", messageId);
-        fillContents(object);
-        return Json.toJson(object);
+        StringWriter out = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginObject();
+            writer.name("message_type").value(getMessageType());
+            writer.name("message_id").value(messageId);
+            fillContents(writer);
+            writer.endObject();
+        } catch(IOException e) {
+            // a StringWriter doesn't throw
+            throw new AssertionError(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serializes the message with the given message id, as it should be written to the socket (newline included).
+     * The json is only built the first time this is called and then only the message id gets spliced in, so a message
+     * broadcast to many clients gets serialized once. This means messages must not be changed once they're sent.
+     * @param messageId the message id to send the message with, the {@link #messageId} field is ignored
+     */
+    public byte[] toBytes(int messageId) {
+        if(messageId < 0) {
+            throw new IllegalStateException("The message ID is a negative value ("+messageId+")!");
+        }
+        Encoded encoded = this.encoded;
+        if(encoded == null) {
+            StringWriter out = new StringWriter();
+            try {
+                JsonWriter writer = new JsonWriter(out);
+                writer.beginObject();
+                fillContents(writer);
+                writer.endObject();
+            } catch(IOException e) {
+                throw new AssertionError(e);
+            }
+            String contentsJson = out.toString();
+            String prefix = "{\"message_type\":" + Json.toJson(getMessageType()) + ",\"message_id\":";
+            // contents without the braces, which are already in the prefix and suffix
+            String suffix = contentsJson.length() == 2 ? "}\n" : "," + contentsJson.substring(1, contentsJson.length() - 1) + "}\n";
+            encoded = new Encoded(prefix.getBytes(StandardCharsets.UTF_8), suffix.getBytes(StandardCharsets.UTF_8));
+            this.encoded = encoded;
+        }
+        byte[] id = Integer.toString(messageId).getBytes(StandardCharsets.US_ASCII);
+        byte[] bytes = new byte[encoded.prefix.length + id.length + encoded.suffix.length];
+        System.arraycopy(encoded.prefix, 0, bytes, 0, encoded.prefix.length);
+        System.arraycopy(id, 0, bytes, encoded.prefix.length, id.length);
+        System.arraycopy(encoded.suffix, 0, bytes, encoded.prefix.length + id.length, encoded.suffix.length);
+        return bytes;
+    }
+
+    /**
+     * Serializes the message in the binary format with the given message id, as it should be written to the socket:
+     * a varint with the length of the rest of the frame, then varints with the type id and the message id, then the
+     * contents (see {@link BinaryWriter}). Like with {@link #toBytes(int)} the contents are only written once.
+     * @param messageId the message id to send the message with, the {@link #messageId} field is ignored
+     */
+    public byte[] toBinary(int messageId) {
+        if(messageId < 0) {
+            throw new IllegalStateException("The message ID is a negative value ("+messageId+")!");
+        }
+        byte[] contents = this.binaryContents;
+        if(contents == null) {
+            BinaryWriter writer = new BinaryWriter();
+            writeContents(writer);
+            contents = writer.toByteArray();
+            this.binaryContents = contents;
+        }
+        int frameLength = BinaryWriter.varIntSize(getTypeId()) + BinaryWriter.varIntSize(messageId) + contents.length;
+        byte[] bytes = new byte[BinaryWriter.varIntSize(frameLength) + frameLength];
+        int position = BinaryWriter.putVarInt(bytes, 0, frameLength);
+        position = BinaryWriter.putVarInt(bytes, position, getTypeId());
+        position = BinaryWriter.putVarInt(bytes, position, messageId);
+        System.arraycopy(contents, 0, bytes, position, contents.length);
+        return bytes;
     }
 
     /**
      * (pretend this is abstract static) (copium) (probably horrible practice but ughhh)
-     * @param json The json representation of the message
+     * @param reader A reader inside the json object of the message, right after its message_type. Must be left right
+     * before the end of the object, skipping any field it doesn't know.
      * @return The message object. This should always be of the same type as the class it is implemented in.
      * @see #withMessageId(int)
      */
-    public static Message fromJson(JsonObject json) throws MessageException {
-        throw new UnsupportedOperationException("fromJson(JsonObject) should not be called from the base Message class!");
+    public static Message fromJson(JsonReader reader) throws IOException, MessageException {
+        throw new UnsupportedOperationException("fromJson(JsonReader) should not be called from the base Message class!");
     };
 
+    /**
+     * Same as {@link #fromJson(JsonReader)} but for the binary format
+     * @param reader A reader positioned right after the message id
+     */
+    public static Message fromBinary(BinaryReader reader) throws MessageException {
+        throw new UnsupportedOperationException("fromBinary(BinaryReader) should not be called from the base Message class!");
+    }
+
     /**
      * Creates an identical copy of this message (without the {@link #messageId})
      */
@@ -85,9 +192,16 @@ public abstract class Message implements Cloneable {
         try {
             Message clone = (Message) super.clone();
             clone.messageId = -1;
+            clone.encoded = null;
+            clone.binaryContents = null;
             return clone;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError();
         }
     }
+
+    /**
+     * The serialized message split around the message id
+     */
+    private record Encoded(byte[] prefix, byte[] suffix) {}
 }
@@ -20,10 +20,13 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
-import dev.blackilykat.Json;
 import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+
+import java.io.IOException;
 
 /**
  * TODO remove
@@ -34,6 +37,7 @@ import dev.blackilykat.messages.exceptions.MessageException;
  */
 public class TestMessage extends Message {
     public static final String MESSAGE_TYPE = "TEST";
+    public static final int TYPE_ID = 5;
     public int deviceId;
 
     public TestMessage(int deviceId) {
@@ -46,8 +50,18 @@ public class TestMessage extends Message {
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        object.addProperty("device_id", deviceId);
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("device_id").value(deviceId);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeInt(deviceId);
     }
 
     @Override
@@ -55,7 +69,23 @@ public class TestMessage extends Message {
     }
 
     //@Override
-    public static TestMessage fromJson(JsonObject json) throws MessageException {
-        return new TestMessage(json.get("device_id").getAsInt());
+    public static TestMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        Integer deviceId = null;
+        while(reader.hasNext()) {
+            if(reader.nextName().equals("device_id")) {
+                deviceId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        if(deviceId == null) {
+            throw new MessageMissingContentsException("Missing device_id");
+        }
+        return new TestMessage(deviceId);
+    }
+
+    //@Override
+    public static TestMessage fromBinary(BinaryReader reader) throws MessageException {
+        return new TestMessage(reader.readInt());
     }
 }
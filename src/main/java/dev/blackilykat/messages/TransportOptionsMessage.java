@@ -0,0 +1,172 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import dev.blackilykat.Client;
+import dev.blackilykat.Config;
+import dev.blackilykat.HashAlgorithm;
+import dev.blackilykat.Json;
+import dev.blackilykat.LibraryIndex;
+import dev.blackilykat.Main;
+import dev.blackilykat.messages.exceptions.MessageException;
+
+import java.io.IOException;
+
+/**
+ * Lets a client pick how the rest of the connection is sent, out of the options advertised in the
+ * {@link WelcomeMessage}. The client sends this once, and the server replies with the same message once it's in
+ * effect.
+ * <br />With "deflate" compression, everything after the newline ending the client's message (in both directions, and
+ * starting after the server's reply) is a single zlib stream that gets flushed with a sync flush after every batch of
+ * messages, so it can be decoded as soon as it arrives. The compression context is kept for the whole connection, which
+ * is what makes repeated file names and action fields compress well.
+ * <br />With the "binary" format, messages after that same point are length-prefixed binary frames instead of lines of
+ * json (see {@link Message#toBinary(int)}). If compression is picked as well, the frames are what gets compressed.
+ * <br />The hash algorithm picks which {@link HashAlgorithm} the {@link LibraryHashesMessage} is calculated with, out
+ * of the ones in the welcome message.
+ * <br />Sending the library hashes is delayed until the client sent this message or until
+ * {@link Config#TRANSPORT_NEGOTIATION_TIMEOUT_MILLIS} passed, so they can benefit from it. Clients that won't pick
+ * anything get them right away by sending any other message first (like clients from before this message existed
+ * usually do), or this message with no options.
+ */
+public class TransportOptionsMessage extends Message {
+    public static final String MESSAGE_TYPE = "TRANSPORT_OPTIONS";
+    public static final int TYPE_ID = 9;
+    public static final String DEFLATE = "deflate";
+    public static final String JSON = "json";
+    public static final String BINARY = "binary";
+    /**
+     * The compression to use, or null for none
+     */
+    public String compression = null;
+    /**
+     * The wire format to use, or null for {@link #JSON}
+     */
+    public String format = null;
+    /**
+     * The id of the hash algorithm of the library hashes, or null for the default
+     * @see LibraryIndex#defaultAlgorithm()
+     */
+    public String hashAlgorithm = null;
+
+    public TransportOptionsMessage() {}
+
+    public TransportOptionsMessage(String compression, String format, String hashAlgorithm) {
+        this.compression = compression;
+        this.format = format;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    @Override
+    public String getMessageType() {
+        return MESSAGE_TYPE;
+    }
+
+    @Override
+    public void fillContents(JsonWriter writer) throws IOException {
+        if(compression != null) {
+            writer.name("compression").value(compression);
+        }
+        if(format != null) {
+            writer.name("format").value(format);
+        }
+        if(hashAlgorithm != null) {
+            writer.name("hash_algorithm").value(hashAlgorithm);
+        }
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeString(compression);
+        writer.writeString(format);
+        writer.writeString(hashAlgorithm);
+    }
+
+    @Override
+    public void handle(Client client) {
+        if(client.transportNegotiated) {
+            client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Transport options were already set");
+            return;
+        }
+        if(compression != null && !(compression.equals(DEFLATE) && Config.COMPRESSION)) {
+            client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Unsupported compression '" + compression + "'");
+            return;
+        }
+        if(format != null && !format.equals(JSON) && !(format.equals(BINARY) && Config.BINARY_FORMAT)) {
+            client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Unsupported format '" + format + "'");
+            return;
+        }
+        HashAlgorithm algorithm = null;
+        if(hashAlgorithm != null) {
+            for(HashAlgorithm available : LibraryIndex.algorithms()) {
+                if(available.id.equals(hashAlgorithm)) algorithm = available;
+            }
+            if(algorithm == null) {
+                client.sendError(ErrorMessage.ErrorType.MESSAGE_INVALID_CONTENTS, messageId, "Unsupported hash algorithm '" + hashAlgorithm + "'");
+                return;
+            }
+        }
+        client.transportNegotiated = true;
+        client.hashAlgorithm = algorithm;
+        // the rest of what was already read is in the new format too
+        if(compression != null) {
+            client.frameDecoder.enableInflate();
+        }
+        if(BINARY.equals(format)) {
+            client.frameDecoder.enableBinary();
+        }
+        // what gets sent to the client switches right after this reply
+        client.send(new TransportOptionsMessage(compression, format, hashAlgorithm));
+        Main.finishHandshake(client);
+    }
+
+    //@Override
+    public static TransportOptionsMessage fromJson(JsonReader reader) throws IOException, MessageException {
+        TransportOptionsMessage message = new TransportOptionsMessage();
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "compression" -> message.compression = Json.nextNullableString(reader);
+                case "format" -> message.format = Json.nextNullableString(reader);
+                case "hash_algorithm" -> message.hashAlgorithm = Json.nextNullableString(reader);
+                default -> reader.skipValue();
+            }
+        }
+        return message;
+    }
+
+    //@Override
+    public static TransportOptionsMessage fromBinary(BinaryReader reader) throws MessageException {
+        TransportOptionsMessage message = new TransportOptionsMessage();
+        message.compression = reader.readString();
+        message.format = reader.readString();
+        if(reader.hasRemaining()) {
+            message.hashAlgorithm = reader.readString();
+        }
+        return message;
+    }
+}
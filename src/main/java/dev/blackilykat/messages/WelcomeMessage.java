@@ -20,9 +20,16 @@
 
 package dev.blackilykat.messages;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.blackilykat.Client;
+import dev.blackilykat.Json;
 import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageMissingContentsException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The first message the server sends when a client successfully connects (would be after authentication when that gets
@@ -31,6 +38,7 @@ import dev.blackilykat.messages.exceptions.MessageException;
  */
 public class WelcomeMessage extends Message {
     public static final String MESSAGE_TYPE = "WELCOME";
+    public static final int TYPE_ID = 1;
     /**
      * @see dev.blackilykat.Client#clientId
      */
@@ -39,6 +47,36 @@ public class WelcomeMessage extends Message {
      * The latest library action id so the client can catch up if needed before checking checksums
      */
     public int latestActionId;
+    /**
+     * Port of the server clients can download library files from without going through the file transfer server.
+     * If negative, it is not included in the message and clients should download from the file transfer server.
+     * @see dev.blackilykat.ZeroCopyDownloadServer
+     */
+    public int downloadPort = -1;
+    /**
+     * Compression algorithms the client can pick with a {@link TransportOptionsMessage}. Not included in the message
+     * if empty.
+     */
+    public List<String> compression = new ArrayList<>();
+    /**
+     * Wire formats the client can pick with a {@link TransportOptionsMessage}. Not included in the message if empty.
+     */
+    public List<String> formats = new ArrayList<>();
+    /**
+     * The root of the {@link dev.blackilykat.LibraryDigest}, so clients that are in sync can tell without going
+     * through the library hashes. Not included in the message if null.
+     */
+    public String libraryDigest = null;
+    /**
+     * The id of the {@link dev.blackilykat.HashAlgorithm} the checksums in {@link #libraryDigest} are calculated with,
+     * which is the one clients that don't pick an algorithm get. Not included in the message if null.
+     */
+    public String digestAlgorithm = null;
+    /**
+     * Ids of the {@link dev.blackilykat.HashAlgorithm}s the client can pick with a {@link TransportOptionsMessage} for
+     * its {@link LibraryHashesMessage}. Not included in the message if empty.
+     */
+    public List<String> hashAlgorithms = new ArrayList<>();
 
     public WelcomeMessage(int clientId, int latestActionId) {
         if(clientId < 0) {
@@ -51,15 +89,72 @@ public class WelcomeMessage extends Message {
         this.latestActionId = latestActionId;
     }
 
+    /**
+     * @return Whether the client has anything to pick with a {@link TransportOptionsMessage}
+     */
+    public boolean hasTransportOptions() {
+        return !compression.isEmpty() || formats.size() > 1 || hashAlgorithms.size() > 1;
+    }
+
     @Override
     public String getMessageType() {
         return MESSAGE_TYPE;
     }
 
     @Override
-    public void fillContents(JsonObject object) {
-        object.addProperty("client_id", clientId);
-        object.addProperty("latest_action_id", latestActionId);
+    public void fillContents(JsonWriter writer) throws IOException {
+        writer.name("client_id").value(clientId);
+        writer.name("latest_action_id").value(latestActionId);
+        if(downloadPort >= 0) {
+            writer.name("download_port").value(downloadPort);
+        }
+        if(!compression.isEmpty()) {
+            writer.name("compression").beginArray();
+            for(String algorithm : compression) {
+                writer.value(algorithm);
+            }
+            writer.endArray();
+        }
+        if(!formats.isEmpty()) {
+            writer.name("formats").beginArray();
+            for(String format : formats) {
+                writer.value(format);
+            }
+            writer.endArray();
+        }
+        if(libraryDigest != null) {
+            writer.name("library_digest").value(libraryDigest);
+        }
+        if(!hashAlgorithms.isEmpty()) {
+            writer.name("hash_algorithms").beginArray();
+            for(String algorithm : hashAlgorithms) {
+                writer.value(algorithm);
+            }
+            writer.endArray();
+        }
+        if(digestAlgorithm != null) {
+            writer.name("digest_algorithm").value(digestAlgorithm);
+        }
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void writeContents(BinaryWriter writer) {
+        writer.writeVarInt(clientId);
+        writer.writeVarInt(latestActionId);
+        writer.writeInt(downloadPort);
+        writer.writeVarInt(compression.size());
+        compression.forEach(writer::writeString);
+        writer.writeVarInt(formats.size());
+        formats.forEach(writer::writeString);
+        writer.writeString(libraryDigest);
+        writer.writeVarInt(hashAlgorithms.size());
+        hashAlgorithms.forEach(writer::writeString);
+        writer.writeString(digestAlgorithm);
     }
 
     @Override
@@ -68,7 +163,62 @@ public class WelcomeMessage extends Message {
     }
 
     //@Override
-    public static Message fromJson(JsonObject json) throws MessageException {
-        return new WelcomeMessage(json.get("client_id").getAsInt(), json.get("latest_action_id").getAsInt());
+    public static Message fromJson(JsonReader reader) throws IOException, MessageException {
+        Integer clientId = null;
+        Integer latestActionId = null;
+        int downloadPort = -1;
+        List<String> compression = new ArrayList<>();
+        List<String> formats = new ArrayList<>();
+        String libraryDigest = null;
+        List<String> hashAlgorithms = new ArrayList<>();
+        String digestAlgorithm = null;
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "client_id" -> clientId = reader.nextInt();
+                case "latest_action_id" -> latestActionId = reader.nextInt();
+                case "download_port" -> downloadPort = reader.nextInt();
+                case "compression" -> Json.readStrings(reader, compression);
+                case "formats" -> Json.readStrings(reader, formats);
+                case "library_digest" -> libraryDigest = reader.nextString();
+                case "hash_algorithms" -> Json.readStrings(reader, hashAlgorithms);
+                case "digest_algorithm" -> digestAlgorithm = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        if(clientId == null || latestActionId == null) {
+            throw new MessageMissingContentsException("Missing client_id or latest_action_id");
+        }
+        WelcomeMessage message = new WelcomeMessage(clientId, latestActionId);
+        message.downloadPort = downloadPort;
+        message.compression = compression;
+        message.formats = formats;
+        message.libraryDigest = libraryDigest;
+        message.hashAlgorithms = hashAlgorithms;
+        message.digestAlgorithm = digestAlgorithm;
+        return message;
+    }
+
+    //@Override
+    public static WelcomeMessage fromBinary(BinaryReader reader) throws MessageException {
+        WelcomeMessage message = new WelcomeMessage(reader.readVarInt(), reader.readVarInt());
+        message.downloadPort = reader.readInt();
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            message.compression.add(reader.readString());
+        }
+        for(int i = reader.readVarInt(); i > 0; i--) {
+            message.formats.add(reader.readString());
+        }
+        if(reader.hasRemaining()) {
+            message.libraryDigest = reader.readString();
+        }
+        if(reader.hasRemaining()) {
+            for(int i = reader.readVarInt(); i > 0; i--) {
+                message.hashAlgorithms.add(reader.readString());
+            }
+        }
+        if(reader.hasRemaining()) {
+            message.digestAlgorithm = reader.readString();
+        }
+        return message;
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.tools;
+
+import dev.blackilykat.ActionDataType;
+import dev.blackilykat.messages.LibraryActionMessage;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Compares storing library actions with java serialization (how they used to be stored) and with
+ * {@link ActionDataType}: how long writing and reading them back takes and how big the database file ends up.
+ * <br />Each format gets its own database in a temporary folder, which gets deleted afterwards. The actions look like
+ * the ones of a real library: mostly adds of files with long names, with some removes and replaces.
+ * <br />Usage: {@code ActionStorageBenchmark [actions]}, the default is 100000 actions.
+ */
+public class ActionStorageBenchmark {
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        List<LibraryActionMessage.Action> actions = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            LibraryActionMessage.Type type = i % 10 == 0 ? LibraryActionMessage.Type.REMOVE
+                    : i % 10 == 1 ? LibraryActionMessage.Type.REPLACE : LibraryActionMessage.Type.ADD;
+            String fileName = String.format("Artist %d - Album %d - %02d Track title number %d.flac", i % 500, i % 2000, i % 20, i);
+            actions.add(new LibraryActionMessage.Action(i, i % 8, fileName, type));
+        }
+
+        File folder = Files.createTempDirectory("pmp-action-benchmark").toFile();
+        try {
+            System.out.printf("Storing %d actions\n", count);
+            run("serialized", new File(folder, "serialized.db"), actions, store -> store.openMap("actions"));
+            run("compact", new File(folder, "compact.db"), actions, store -> store.openMap("library_actions",
+                    new MVMap.Builder<Integer, LibraryActionMessage.Action>().valueType(ActionDataType.INSTANCE)));
+        } finally {
+            File[] files = folder.listFiles();
+            if(files != null) {
+                for(File file : files) {
+                    file.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    private static void run(String name, File file, List<LibraryActionMessage.Action> actions,
+                            Function<MVStore, MVMap<Integer, LibraryActionMessage.Action>> openMap) {
+        long start = System.nanoTime();
+        try(MVStore store = MVStore.open(file.getPath())) {
+            MVMap<Integer, LibraryActionMessage.Action> map = openMap.apply(store);
+            for(LibraryActionMessage.Action action : actions) {
+                map.put(action.actionId, action);
+            }
+            store.commit();
+        }
+        double writeSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        start = System.nanoTime();
+        int read = 0;
+        try(MVStore store = MVStore.open(file.getPath())) {
+            Cursor<Integer, LibraryActionMessage.Action> cursor = openMap.apply(store).cursor(null);
+            while(cursor.hasNext()) {
+                cursor.next();
+                if(cursor.getValue().fileName != null) read++;
+            }
+        }
+        double readSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        if(read != actions.size()) {
+            throw new IllegalStateException("Read " + read + " actions back out of " + actions.size());
+        }
+
+        System.out.printf("%-10s write %8.0f actions/s  read %8.0f actions/s  file %7.1fKB (%.1f bytes per action)\n",
+                name, actions.size() / writeSeconds, actions.size() / readSeconds, file.length() / 1024.0,
+                file.length() / (double) actions.size());
+    }
+}
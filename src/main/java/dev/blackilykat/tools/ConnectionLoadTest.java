@@ -0,0 +1,104 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.tools;
+
+import dev.blackilykat.Config;
+import dev.blackilykat.Main;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the server in this process, opens idle connections to it in stages and prints how many platform threads and
+ * how much heap the server needs for each stage. Run it once with {@code -Dpmp.clients.virtualThreads=true} and once
+ * without to compare the two execution models.
+ * <br />Uses the database and library in the working directory like the server would, and needs a file descriptor
+ * limit of at least twice the biggest stage since both ends of every connection are in this process.
+ * <br />Usage: {@code ConnectionLoadTest [stage...]}, the default stages are 1000, 5000 and 10000 connections.
+ */
+public class ConnectionLoadTest {
+    public static void main(String[] args) throws Exception {
+        int[] stages = {1000, 5000, 10000};
+        if(args.length > 0) {
+            stages = new int[args.length];
+            for(int i = 0; i < args.length; i++) {
+                stages[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Thread server = new Thread(() -> {
+            try {
+                Main.main(new String[0]);
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "Server");
+        server.setDaemon(true);
+        server.start();
+
+        List<Socket> sockets = new ArrayList<>();
+        waitForServer(sockets);
+        report("baseline", sockets.size());
+
+        for(int stage : stages) {
+            while(sockets.size() < stage) {
+                sockets.add(new Socket("localhost", 5000));
+            }
+            long deadline = System.currentTimeMillis() + 60_000;
+            while(Main.clients.size() < stage && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            // let the handshakes finish writing before measuring
+            Thread.sleep(2000);
+            report(Config.VIRTUAL_CLIENT_THREADS ? "virtual" : "platform", stage);
+        }
+
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+
+    private static void waitForServer(List<Socket> sockets) throws InterruptedException {
+        while(true) {
+            try {
+                sockets.add(new Socket("localhost", 5000));
+                return;
+            } catch(IOException e) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void report(String mode, int connections) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("[%s] %d connections, %d connected clients: %d platform threads, %dMB heap used\n",
+                mode,
+                connections,
+                Main.clients.size(),
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                (runtime.totalMemory() - runtime.freeMemory()) / 1048576);
+    }
+}
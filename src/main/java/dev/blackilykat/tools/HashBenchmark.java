@@ -0,0 +1,108 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.tools;
+
+import dev.blackilykat.Config;
+import dev.blackilykat.HashAlgorithm;
+import dev.blackilykat.Storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast each {@link HashAlgorithm} hashes real files, to help pick {@link Config#HASH_ALGORITHM}.
+ * <br />Files are read into memory first and then hashed the same way {@link dev.blackilykat.LibraryIndex} does, in
+ * pieces of {@link Config#HASH_BUFFER_SIZE} bytes, so what gets measured is the algorithm and not the disk. When the
+ * library isn't cached, scans are usually limited by the disk anyway unless it's fast.
+ * <br />Usage: {@code HashBenchmark [folder] [max megabytes] [rounds]}, the defaults are the library, 1024MB and 5
+ * rounds. Only the fastest round of each algorithm is printed.
+ */
+public class HashBenchmark {
+    /**
+     * Where results go so the hashing can't be optimized away
+     */
+    private static long sink = 0;
+
+    public static void main(String[] args) throws IOException {
+        File folder = args.length > 0 ? new File(args[0]) : Storage.LIBRARY;
+        long maxBytes = (args.length > 1 ? Long.parseLong(args[1]) : 1024) * 1048576;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File[] files = folder.listFiles();
+        if(files == null) {
+            throw new IOException("Could not list files in " + folder.getAbsolutePath());
+        }
+        List<ByteBuffer> contents = new ArrayList<>();
+        long totalBytes = 0;
+        for(File file : files) {
+            if(!file.isFile() || file.length() > Integer.MAX_VALUE) continue;
+            if(totalBytes + file.length() > maxBytes) break;
+            contents.add(read(file));
+            totalBytes += file.length();
+        }
+        if(contents.isEmpty()) {
+            System.out.println("No files to hash in " + folder.getAbsolutePath());
+            return;
+        }
+        System.out.printf("Hashing %d files, %.1fMB, %d rounds each\n", contents.size(), totalBytes / 1048576.0, rounds);
+
+        // the first algorithm would otherwise look slower because it gets compiled while it's being measured
+        for(HashAlgorithm algorithm : HashAlgorithm.values()) {
+            sink ^= hashAll(algorithm, contents);
+        }
+        for(HashAlgorithm algorithm : HashAlgorithm.values()) {
+            long best = Long.MAX_VALUE;
+            for(int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                sink ^= hashAll(algorithm, contents);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            double seconds = best / 1_000_000_000.0;
+            System.out.printf("%-8s %8.1fMB/s  %7.1f files/s\n", algorithm.id, totalBytes / 1048576.0 / seconds,
+                    contents.size() / seconds);
+        }
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) file.length());
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+        }
+        return buffer.flip();
+    }
+
+    private static long hashAll(HashAlgorithm algorithm, List<ByteBuffer> contents) {
+        long result = 0;
+        for(ByteBuffer content : contents) {
+            HashAlgorithm.Hasher hasher = algorithm.newHasher();
+            for(int position = 0; position < content.limit(); position += Config.HASH_BUFFER_SIZE) {
+                hasher.update(content.slice(position, Math.min(Config.HASH_BUFFER_SIZE, content.limit() - position)));
+            }
+            result ^= hasher.value();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import dev.blackilykat.messages.LibraryActionMessage;
+import org.h2.mvstore.WriteBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ActionDataTypeTest {
+    @Test
+    void readsActionsWithMetadata() {
+        LibraryActionMessage.Action action = new LibraryActionMessage.Action(42, 7, "Artist - Song.flac",
+                LibraryActionMessage.Type.CHANGE_METADATA, Arrays.asList(
+                        new LibraryActionMessage.Pair<>("title", "Song"),
+                        new LibraryActionMessage.Pair<>("comment", null),
+                        new LibraryActionMessage.Pair<>(null, "")));
+        assertSameAction(action, roundTrip(action));
+    }
+
+    @Test
+    void readsActionsWithoutMetadata() {
+        LibraryActionMessage.Action action = new LibraryActionMessage.Action(300000, -1, "song.flac",
+                LibraryActionMessage.Type.REMOVE);
+        LibraryActionMessage.Action read = roundTrip(action);
+        assertSameAction(action, read);
+        assertNull(read.newMetadata);
+    }
+
+    @Test
+    void readsEmptyMetadata() {
+        LibraryActionMessage.Action action = new LibraryActionMessage.Action(1, 0, "song.flac",
+                LibraryActionMessage.Type.CHANGE_METADATA, List.of());
+        assertSameAction(action, roundTrip(action));
+    }
+
+    @Test
+    void readsNonAsciiNames() {
+        LibraryActionMessage.Action action = new LibraryActionMessage.Action(5, 3, "Sigur Rós - Hoppípolla 🎵.flac",
+                LibraryActionMessage.Type.ADD, List.of(new LibraryActionMessage.Pair<>("artist", "Sigur Rós")));
+        assertSameAction(action, roundTrip(action));
+    }
+
+    @Test
+    void readsActionsOneAfterAnother() {
+        LibraryActionMessage.Action first = new LibraryActionMessage.Action(1, 2, "a.flac",
+                LibraryActionMessage.Type.ADD);
+        LibraryActionMessage.Action second = new LibraryActionMessage.Action(2, -1, "b.flac",
+                LibraryActionMessage.Type.REPLACE);
+        WriteBuffer buffer = new WriteBuffer();
+        ActionDataType.INSTANCE.write(buffer, first);
+        ActionDataType.INSTANCE.write(buffer, second);
+        ByteBuffer read = buffer.getBuffer().flip();
+        assertSameAction(first, ActionDataType.INSTANCE.read(read));
+        assertSameAction(second, ActionDataType.INSTANCE.read(read));
+        assertFalse(read.hasRemaining());
+    }
+
+    @Test
+    void rejectsUnknownVersions() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{ActionDataType.VERSION + 1, 0, 0, 0, 0, 0});
+        assertThrows(IllegalStateException.class, () -> ActionDataType.INSTANCE.read(buffer));
+    }
+
+    private static LibraryActionMessage.Action roundTrip(LibraryActionMessage.Action action) {
+        WriteBuffer buffer = new WriteBuffer();
+        ActionDataType.INSTANCE.write(buffer, action);
+        return ActionDataType.INSTANCE.read(buffer.getBuffer().flip());
+    }
+
+    private static void assertSameAction(LibraryActionMessage.Action expected, LibraryActionMessage.Action actual) {
+        assertEquals(expected.actionId, actual.actionId);
+        assertEquals(expected.clientId, actual.clientId);
+        assertEquals(expected.fileName, actual.fileName);
+        assertEquals(expected.actionType, actual.actionType);
+        if(expected.newMetadata == null) {
+            assertNull(actual.newMetadata);
+            return;
+        }
+        assertEquals(expected.newMetadata.size(), actual.newMetadata.size());
+        for(int i = 0; i < expected.newMetadata.size(); i++) {
+            assertEquals(expected.newMetadata.get(i).key, actual.newMetadata.get(i).key);
+            assertEquals(expected.newMetadata.get(i).value, actual.newMetadata.get(i).value);
+        }
+    }
+}
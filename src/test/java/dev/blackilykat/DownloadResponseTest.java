@@ -0,0 +1,150 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DownloadResponseTest {
+    private static final long SIZE = 1000;
+    private static final String ETAG = "\"1234-3e8\"";
+
+    @TempDir
+    Path directory;
+    private File file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = directory.resolve("song.flac").toFile();
+        Files.write(file.toPath(), new byte[(int) SIZE]);
+        Storage.checksums = new HashMap<>();
+        Storage.checksums.put(file.getName(), new LibraryIndex.Entry(file.length(), file.lastModified(), 0x1234));
+    }
+
+    @Test
+    void sendsTheWholeFileWithoutRange() {
+        DownloadResponse response = create(Map.of());
+        assertFull(response);
+        assertEquals(ETAG, response.headers.get("ETag"));
+        assertEquals("bytes", response.headers.get("Accept-Ranges"));
+        assertNull(response.headers.get("Content-Range"));
+    }
+
+    @Test
+    void sendsRanges() {
+        assertPartial(create(Map.of("range", "bytes=0-99")), 0, 99);
+        assertPartial(create(Map.of("range", "bytes=900-")), 900, 999);
+        assertPartial(create(Map.of("range", "bytes= 10 - 19")), 10, 19);
+    }
+
+    @Test
+    void sendsSuffixRanges() {
+        assertPartial(create(Map.of("range", "bytes=-10")), 990, 999);
+        assertPartial(create(Map.of("range", "bytes=-5000")), 0, 999);
+    }
+
+    @Test
+    void clipsRangesToTheEndOfTheFile() {
+        assertPartial(create(Map.of("range", "bytes=500-5000")), 500, 999);
+    }
+
+    @Test
+    void rejectsUnsatisfiableRanges() {
+        for(String range : new String[]{"bytes=1000-", "bytes=2000-3000", "bytes=-0"}) {
+            DownloadResponse response = create(Map.of("range", range));
+            assertEquals(416, response.status, range);
+            assertEquals(0, response.length, range);
+            assertEquals("bytes */1000", response.headers.get("Content-Range"), range);
+        }
+    }
+
+    @Test
+    void ignoresRangesItDoesNotSupport() {
+        for(String range : new String[]{"bytes=0-9,20-29", "items=0-9", "bytes=abc", "bytes=5", "bytes=20-10",
+                "bytes=-"}) {
+            DownloadResponse response = create(Map.of("range", range));
+            assertFull(response);
+            assertFalse(response.headers.containsKey("Content-Range"), range);
+        }
+    }
+
+    @Test
+    void sendsTheWholeFileWhenIfRangeDoesNotMatch() {
+        assertFull(create(Map.of("range", "bytes=0-99", "if-range", "\"abcd-3e8\"")));
+        assertPartial(create(Map.of("range", "bytes=0-99", "if-range", ETAG)), 0, 99);
+    }
+
+    @Test
+    void answersNotModifiedForMatchingEtags() {
+        assertEquals(304, create(Map.of("if-none-match", ETAG)).status);
+        assertEquals(304, create(Map.of("if-none-match", "\"abcd-3e8\", W/" + ETAG)).status);
+        assertEquals(304, create(Map.of("if-none-match", "*")).status);
+        assertEquals(304, create(Map.of("if-none-match", ETAG, "range", "bytes=0-99")).status);
+        assertFull(create(Map.of("if-none-match", "\"abcd-3e8\"")));
+    }
+
+    @Test
+    void answersNotModifiedForOldDates() {
+        assertEquals(304, create(Map.of("if-modified-since", "Fri, 31 Dec 9999 23:59:59 GMT")).status);
+        assertFull(create(Map.of("if-modified-since", "Thu, 1 Jan 1970 00:00:00 GMT")));
+        assertFull(create(Map.of("if-modified-since", "yesterday")));
+        // if-none-match wins over if-modified-since
+        assertFull(create(Map.of("if-none-match", "\"abcd-3e8\"",
+                "if-modified-since", "Fri, 31 Dec 9999 23:59:59 GMT")));
+    }
+
+    @Test
+    void leavesOutTheEtagOfFilesThatChanged() {
+        Storage.checksums.put(file.getName(), new LibraryIndex.Entry(SIZE + 1, file.lastModified(), 0x1234));
+        DownloadResponse response = create(Map.of("range", "bytes=0-99", "if-range", ETAG));
+        assertFull(response);
+        assertNull(response.headers.get("ETag"));
+    }
+
+    private DownloadResponse create(Map<String, String> headers) {
+        return DownloadResponse.create(file, SIZE, headers::get);
+    }
+
+    private static void assertFull(DownloadResponse response) {
+        assertEquals(200, response.status);
+        assertEquals(0, response.start);
+        assertEquals(SIZE, response.length);
+    }
+
+    private static void assertPartial(DownloadResponse response, long first, long last) {
+        assertEquals(206, response.status);
+        assertEquals(first, response.start);
+        assertEquals(last - first + 1, response.length);
+        assertEquals("bytes " + first + "-" + last + "/" + SIZE, response.headers.get("Content-Range"));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    @Test
+    void splitsLines() {
+        RecordingClient client = new RecordingClient(64);
+        client.receive("first\nsecond\n");
+        assertEquals(List.of("first", "second"), client.frames);
+    }
+
+    @Test
+    void ignoresEmptyLines() {
+        RecordingClient client = new RecordingClient(64);
+        client.receive("\n\nframe\n\n");
+        assertEquals(List.of("frame"), client.frames);
+    }
+
+    @Test
+    void joinsFramesSplitAcrossReads() {
+        RecordingClient client = new RecordingClient(64);
+        client.receive("hel");
+        client.receive("lo\nwor");
+        assertEquals(List.of("hello"), client.frames);
+        client.receive("ld\n");
+        assertEquals(List.of("hello", "world"), client.frames);
+    }
+
+    @Test
+    void decodesCharactersSplitAcrossReads() {
+        RecordingClient client = new RecordingClient(64);
+        byte[] bytes = "caffè\n".getBytes(StandardCharsets.UTF_8);
+        // splits the two bytes of è
+        client.receive(Arrays.copyOfRange(bytes, 0, 5));
+        client.receive(Arrays.copyOfRange(bytes, 5, bytes.length));
+        assertEquals(List.of("caffè"), client.frames);
+    }
+
+    @Test
+    void discardsOversizeFrames() {
+        RecordingClient client = new RecordingClient(8);
+        client.receive("0123456789\nok\n");
+        assertEquals(1, client.rejected);
+        assertEquals(List.of("ok"), client.frames);
+    }
+
+    @Test
+    void discardsOversizeFramesSplitAcrossReads() {
+        RecordingClient client = new RecordingClient(8);
+        client.receive("01234");
+        client.receive("56789");
+        client.receive("01234");
+        client.receive("\nok\n");
+        assertEquals(1, client.rejected);
+        assertEquals(List.of("ok"), client.frames);
+    }
+
+    @Test
+    void switchesToBinaryFramesInTheSameRead() {
+        RecordingClient client = new RecordingClient(300);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes("binary\n".getBytes(StandardCharsets.UTF_8));
+        bytes.writeBytes(new byte[]{3, 1, 2, 3});
+        bytes.writeBytes(new byte[]{0});
+        client.receive(bytes.toByteArray());
+        assertEquals(List.of("binary"), client.frames);
+        assertEquals(2, client.binaryFrames.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, client.binaryFrames.get(0));
+        assertArrayEquals(new byte[0], client.binaryFrames.get(1));
+    }
+
+    @Test
+    void joinsBinaryFramesSplitAcrossReads() {
+        RecordingClient client = new RecordingClient(300);
+        client.receive("binary\n");
+        byte[] frame = new byte[200];
+        Arrays.fill(frame, (byte) 7);
+        // 200 takes two bytes as a varint, which get split as well
+        client.receive(new byte[]{(byte) 0xC8});
+        client.receive(new byte[]{0x01, 7, 7});
+        client.receive(Arrays.copyOfRange(frame, 2, 200));
+        assertEquals(1, client.binaryFrames.size());
+        assertArrayEquals(frame, client.binaryFrames.get(0));
+    }
+
+    @Test
+    void skipsOversizeBinaryFrames() {
+        RecordingClient client = new RecordingClient(16);
+        client.receive("binary\n");
+        client.receive(new byte[]{20, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        client.receive(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 9});
+        assertEquals(1, client.rejected);
+        assertEquals(1, client.binaryFrames.size());
+        assertArrayEquals(new byte[]{9}, client.binaryFrames.get(0));
+    }
+
+    @Test
+    void disconnectsOnInvalidBinaryLength() {
+        RecordingClient client = new RecordingClient(16);
+        client.receive("binary\n");
+        client.receive(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80});
+        assertTrue(client.disconnected);
+    }
+
+    @Test
+    void inflatesAfterCompressionIsTurnedOn() {
+        RecordingClient client = new RecordingClient(64);
+        Deflater deflater = new Deflater();
+        deflater.setInput("one\ntwo\n".getBytes(StandardCharsets.UTF_8));
+        byte[] compressed = new byte[256];
+        int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes("deflate\n".getBytes(StandardCharsets.UTF_8));
+        bytes.write(compressed, 0, length);
+        client.receive(bytes.toByteArray());
+        client.decoder.close();
+        assertEquals(List.of("deflate", "one", "two"), client.frames);
+    }
+
+    @Test
+    void disconnectsOnInvalidCompressedData() {
+        RecordingClient client = new RecordingClient(64);
+        client.receive("deflate\n");
+        client.receive(new byte[]{1, 2, 3, 4});
+        assertTrue(client.disconnected);
+    }
+
+    /**
+     * Keeps whatever the decoder passes to it instead of handling it. The frames "binary" and "deflate" switch the
+     * decoder to the binary format and to compression.
+     */
+    private static class RecordingClient extends Client {
+        final FrameDecoder decoder;
+        final List<String> frames = new ArrayList<>();
+        final List<byte[]> binaryFrames = new ArrayList<>();
+        int rejected = 0;
+        boolean disconnected = false;
+
+        RecordingClient(int maxFrameSize) {
+            super(null, 0, null, null);
+            decoder = new FrameDecoder(this, maxFrameSize);
+        }
+
+        void receive(String string) {
+            receive(string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void receive(byte[] bytes) {
+            decoder.decode(ByteBuffer.wrap(bytes));
+        }
+
+        @Override
+        public void handleFrame(String message) {
+            frames.add(message);
+            switch(message) {
+                case "binary" -> decoder.enableBinary();
+                case "deflate" -> decoder.enableInflate();
+            }
+        }
+
+        @Override
+        public void handleBinaryFrame(byte[] frame, int offset, int length) {
+            binaryFrames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+
+        @Override
+        public void rejectOversizeFrame() {
+            rejected++;
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        @Override
+        public String toString() {
+            return "RecordingClient";
+        }
+    }
+}
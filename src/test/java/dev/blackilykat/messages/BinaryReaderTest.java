@@ -0,0 +1,152 @@
+/*
+ * PMP-Server - A server for Personal Music Platform, a self-hosted
+ * platform to play music and make sure everything is always synced
+ * across devices.
+ * Copyright (C) 2024 Blackilykat
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.messages;
+
+import dev.blackilykat.messages.exceptions.MessageException;
+import dev.blackilykat.messages.exceptions.MessageFormatException;
+import dev.blackilykat.messages.exceptions.MessageInvalidContentsException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryReaderTest {
+    @Test
+    void readsWhatWasWritten() throws MessageException {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeVarInt(0);
+        writer.writeVarInt(300);
+        writer.writeVarInt(Integer.MAX_VALUE);
+        writer.writeInt(-1);
+        writer.writeInt(Integer.MIN_VALUE);
+        writer.writeInt(Integer.MAX_VALUE);
+        writer.writeLong(-1);
+        writer.writeLong(Long.MIN_VALUE);
+        writer.writeLong(Long.MAX_VALUE);
+        writer.writeBoolean(true);
+        writer.writeBoolean(false);
+        writer.writeString(null);
+        writer.writeString("");
+        writer.writeString("perché");
+        writer.writeString("perché");
+        writer.writeEnum(Fruit.APPLE);
+        writer.writeEnum(null);
+        writer.writeEnum(Fruit.APPLE);
+
+        BinaryReader reader = reader(writer.toByteArray());
+        assertEquals(0, reader.readVarInt());
+        assertEquals(300, reader.readVarInt());
+        assertEquals(Integer.MAX_VALUE, reader.readVarInt());
+        assertEquals(-1, reader.readInt());
+        assertEquals(Integer.MIN_VALUE, reader.readInt());
+        assertEquals(Integer.MAX_VALUE, reader.readInt());
+        assertEquals(-1L, reader.readLong());
+        assertEquals(Long.MIN_VALUE, reader.readLong());
+        assertEquals(Long.MAX_VALUE, reader.readLong());
+        assertTrue(reader.readBoolean());
+        assertFalse(reader.readBoolean());
+        assertNull(reader.readString());
+        assertEquals("", reader.readString());
+        assertEquals("perché", reader.readString());
+        assertEquals("perché", reader.readString());
+        assertEquals(Fruit.APPLE, reader.readEnum(Fruit.class));
+        assertNull(reader.readEnum(Fruit.class));
+        assertEquals(Fruit.APPLE, reader.readEnum(Fruit.class));
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void writesSmallNegativeNumbersAsOneByte() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeInt(-1);
+        writer.writeLong(-1);
+        assertArrayEquals(new byte[]{0x01, 0x01}, writer.toByteArray());
+    }
+
+    @Test
+    void writesRepeatedStringsAsReferences() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeString("a");
+        writer.writeString("b");
+        writer.writeString("a");
+        writer.writeString("b");
+        assertArrayEquals(new byte[]{1, 1, 'a', 1, 1, 'b', 2, 3}, writer.toByteArray());
+    }
+
+    @Test
+    void readsWithinTheGivenRange() throws MessageException {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeInt(42);
+        byte[] message = writer.toByteArray();
+        byte[] bytes = new byte[message.length + 2];
+        System.arraycopy(message, 0, bytes, 1, message.length);
+        BinaryReader reader = new BinaryReader(bytes, 1, message.length);
+        assertTrue(reader.hasRemaining());
+        assertEquals(42, reader.readInt());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void failsOnTruncatedMessages() {
+        assertThrows(MessageFormatException.class, () -> reader(new byte[0]).readBoolean());
+        assertThrows(MessageFormatException.class, () -> reader(new byte[]{(byte) 0x80}).readVarInt());
+        assertThrows(MessageFormatException.class, () -> reader(new byte[]{1, 5, 'a', 'b'}).readString());
+    }
+
+    @Test
+    void failsOnTooLongVarints() {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        assertThrows(MessageFormatException.class, () -> reader(bytes).readVarInt());
+        assertThrows(MessageFormatException.class, () -> reader(bytes).readLong());
+    }
+
+    @Test
+    void failsOnReferencesToUnsentStrings() throws MessageException {
+        assertThrows(MessageFormatException.class, () -> reader(new byte[]{2}).readString());
+        BinaryReader reader = reader(new byte[]{1, 1, 'a', 3});
+        assertEquals("a", reader.readString());
+        assertThrows(MessageFormatException.class, reader::readString);
+    }
+
+    @Test
+    void failsOnUnknownEnumConstants() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeString("DURIAN");
+        assertThrows(MessageInvalidContentsException.class,
+                () -> reader(writer.toByteArray()).readEnum(Fruit.class));
+    }
+
+    private static BinaryReader reader(byte[] bytes) {
+        return new BinaryReader(bytes, 0, bytes.length);
+    }
+
+    private enum Fruit {
+        APPLE,
+        PEAR
+    }
+}